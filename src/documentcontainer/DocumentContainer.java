@@ -35,6 +35,8 @@ public interface DocumentContainer {
 
     public boolean openDocument(File input);
 
+    public boolean openDocumentReadOnly(File input);
+
     public void open(File f);
 
     public boolean newDocument();
@@ -216,24 +216,40 @@ public class DocumentIOManager {
     }
 
     public void open(Component parent, FileFilter filter) throws IOException {
+        open(parent, filter, false);
+    }
+
+    /**
+     * Open a file that cannot be edited, which may be far larger than the
+     * files open() can read
+     */
+    public void openReadOnly(Component parent, FileFilter filter) throws IOException {
+        open(parent, filter, true);
+    }
+
+    /**
+     * Offer to save the changes of the current document, then let the user
+     * choose the file to open
+     */
+    private void open(Component parent, FileFilter filter, boolean readOnly) throws IOException {
         boolean modified = container.isCurrentDocModified();
 
         if (modified) {
             int saveChanges = showModifiedWarning(parent, container.getCurrentDocTitle());
             if (saveChanges == JOptionPane.YES_OPTION) {
                 if (save(parent, filter)) {
-                    openFile(parent, filter);
+                    openFile(parent, filter, readOnly);
                 }
             } else if (saveChanges == JOptionPane.NO_OPTION) {
-                openFile(parent, filter);
+                openFile(parent, filter, readOnly);
             }
         } else {
-            openFile(parent, filter);
+            openFile(parent, filter, readOnly);
         }
 
     }
 
-    private void openFile(Component parent, FileFilter filter) throws IOException {
+    private void openFile(Component parent, FileFilter filter, boolean readOnly) throws IOException {
 
         JFileChooser fc = new JFileChooser();
         fc.setCurrentDirectory(this.lastOpenDir);
@@ -243,8 +259,12 @@ public class DocumentIOManager {
             this.lastOpenDir = fc.getCurrentDirectory();
             File f = fc.getSelectedFile();
             if (f != null) {
-                container.openDocument(f);
-                this.addToRecentlyAccessed(f);
+                if (readOnly) {
+                    container.openDocumentReadOnly(f);
+                } else {
+                    container.openDocument(f);
+                    this.addToRecentlyAccessed(f);
+                }
             }
         }
 
@@ -1,15 +1,15 @@
 /*
  * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
- * 
- * Licensed under the Apache License, Version 2.0 (the "License"); 
- * you may not use this file except in compliance with the License. 
- * You may obtain a copy of the License 
- *       at http://www.apache.org/licenses/LICENSE-2.0 
- * Unless required by applicable law or agreed to in writing, software 
- * distributed under the License is distributed on an "AS IS" BASIS, 
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
- * See the License for the specific language governing permissions and 
- * limitations under the License.  
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
  */
 
 package jsyntaxpane;
@@ -21,77 +21,237 @@ import javax.swing.undo.UndoManager;
 import javax.swing.undo.UndoableEdit;
 
 /**
- * A simple UndoManager that groups the Edits in each 0.5 second.  If the time 
+ * A simple UndoManager that groups the Edits in each 0.5 second.  If the time
  * difference between the current undo and the last one is less than 0.5 secs,
  * then the two edits are compound.
+ *
+ * The edits of a group are merged when they can be, so a word typed is kept
+ * as one edit of its text rather than an edit per character, see
+ * {@link SyntaxDocument}.  The edits kept are also limited by the memory
+ * they use: the oldest groups are discarded when the edits kept use more
+ * than the byte limit.
  * @author Ayman Al-Sairafi
  */
 public class CompoundUndoManager extends UndoManager {
-    
+
     /**
      * Delay between consequtive edits in ms where edits are added together.
-     * If the delay is greater than this, then separate undo operations are 
+     * If the delay is greater than this, then separate undo operations are
      * done, otherwise they are combined.
      */
     public static final int IDLE_DELAY_MS = 500;
+    /**
+     * The number of bytes the edits kept may use, unless set with
+     * setByteLimit()
+     */
+    public static final long DEFAULT_BYTE_LIMIT = 16 * 1024 * 1024;
+    /**
+     * The bytes counted for an edit that does not say what it uses
+     */
+    static final int EDIT_SIZE = 64;
 
-    long startMillis = 0;
-    CompoundEdit comp = null;
+    private long byteLimit = DEFAULT_BYTE_LIMIT;
+    private boolean truncated;
 
     public CompoundUndoManager() {
     }
 
     @Override
     public synchronized boolean addEdit(UndoableEdit anEdit) {
-        long now = System.currentTimeMillis();
-        if (comp == null) {
-            comp = new CompoundEdit();
+        // the last group takes the edit if it is still open, else a new
+        // group starts with it
+        Group last = openGroup();
+        if (last == null || System.currentTimeMillis() - last.lastMillis > IDLE_DELAY_MS) {
+            commitCompound();
+            Group group = new Group();
+            group.addEdit(anEdit);
+            anEdit = group;
         }
-        comp.addEdit(anEdit);
-        if (now - startMillis > IDLE_DELAY_MS) {
-            comp.end();
-            super.addEdit(comp);
-            comp = null;
-        }
-        startMillis = now;
-        return true;
+        boolean added = super.addEdit(anEdit);
+        trimForBytes();
+        return added;
     }
 
-    @Override
-    public synchronized boolean canRedo() {
-        commitCompound();
-        return super.canRedo();
+    /**
+     * Discard the oldest edits until the rest use no more than the byte
+     * limit.  If the edits that can be redone still use more, the newest of
+     * them are discarded, so the ones kept can still be redone in order.
+     */
+    private void trimForBytes() {
+        long size = getSize();
+        UndoableEdit next = editToBeRedone();
+        int redone = (next == null) ? edits.size() : edits.indexOf(next);
+        int oldest = 0;
+        while (size > byteLimit && oldest < redone) {
+            size -= sizeOf(edits.get(oldest++));
+        }
+        int newest = edits.size();
+        while (size > byteLimit && newest > oldest) {
+            size -= sizeOf(edits.get(--newest));
+        }
+        if (newest < edits.size()) {
+            trimEdits(newest, edits.size() - 1);
+        }
+        if (oldest > 0) {
+            trimEdits(0, oldest - 1);
+        }
     }
 
     @Override
-    public synchronized boolean canUndo() {
-        commitCompound();
-        return super.canUndo();
+    protected void trimEdits(int from, int to) {
+        UndoableEdit next = editToBeRedone();
+        int redone = (next == null) ? edits.size() : edits.indexOf(next);
+        if (from <= to && from < redone) {
+            truncated = true;
+        }
+        super.trimEdits(from, to);
     }
 
     @Override
     public synchronized void discardAllEdits() {
-        comp = null;
         super.discardAllEdits();
+        truncated = false;
+    }
+
+    /**
+     * Discard all edits, because the text has changed in a way that cannot
+     * be undone
+     */
+    public synchronized void truncate() {
+        super.discardAllEdits();
+        truncated = true;
+    }
+
+    /**
+     * @return true if edits that could still be undone were discarded since
+     * the last discardAllEdits(), so undoing all edits kept does not bring
+     * back the text as it was then
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the number of bytes an edit keeps, or an estimate
+     */
+    static long sizeOf(UndoableEdit edit) {
+        if (edit instanceof SizedEdit) {
+            return ((SizedEdit) edit).getSize();
+        }
+        return EDIT_SIZE;
+    }
+
+    /**
+     * Set the number of bytes the edits kept may use.  The oldest edits are
+     * discarded if they use more.
+     * @param byteLimit
+     */
+    public synchronized void setByteLimit(long byteLimit) {
+        this.byteLimit = byteLimit;
+        trimForBytes();
+    }
+
+    /**
+     * @return the number of bytes the edits kept may use
+     */
+    public synchronized long getByteLimit() {
+        return byteLimit;
+    }
+
+    /**
+     * @return the number of edits kept, undone ones too
+     */
+    public synchronized int getEditCount() {
+        return edits.size();
+    }
+
+    /**
+     * @return the number of bytes used by the edits kept
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (UndoableEdit edit : edits) {
+            size += sizeOf(edit);
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        // the open group can be undone once it is closed
+        if (openGroup() != null) {
+            return true;
+        }
+        return super.canUndo();
     }
 
     @Override
     public synchronized void redo() throws CannotRedoException {
         commitCompound();
         super.redo();
+        trimForBytes();
     }
 
     @Override
     public synchronized void undo() throws CannotUndoException {
         commitCompound();
         super.undo();
+        // an undone insert keeps its text
+        trimForBytes();
     }
 
     private void commitCompound() {
-        if (comp != null) {
-            comp.end();
-            super.addEdit(comp);
-            comp = null;
+        Group last = openGroup();
+        if (last != null) {
+            last.end();
+        }
+    }
+
+    /**
+     * @return the last group, if edits can still be added to it
+     */
+    private Group openGroup() {
+        UndoableEdit last = lastEdit();
+        if (last instanceof Group && ((Group) last).isInProgress()) {
+            return (Group) last;
+        }
+        return null;
+    }
+
+    /**
+     * An edit that knows how many bytes it keeps
+     */
+    static interface SizedEdit extends UndoableEdit {
+
+        long getSize();
+    }
+
+    /**
+     * A CompoundEdit that adds up the bytes its edits keep
+     */
+    static class SizedCompoundEdit extends CompoundEdit implements SizedEdit {
+
+        @Override
+        public long getSize() {
+            long size = EDIT_SIZE;
+            for (UndoableEdit edit : edits) {
+                size += sizeOf(edit);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The edits made less than IDLE_DELAY_MS apart
+     */
+    private static class Group extends SizedCompoundEdit {
+
+        long lastMillis;
+
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            lastMillis = System.currentTimeMillis();
+            return super.addEdit(anEdit);
         }
     }
 }
@@ -17,10 +17,13 @@ import java.awt.Color;
 import java.util.logging.Level;
 import java.awt.Font;
 import java.awt.GraphicsEnvironment;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -29,6 +32,9 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.swing.JEditorPane;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
@@ -47,6 +53,9 @@ import jsyntaxpane.util.JarServiceProvider;
  * set the EditorKit of the EditorPane to a new instance of this class.
  * 
  * You need to pass a proper lexer to the class.
+ *
+ * Documents that are too large for the configured components and full
+ * highlighting put the editor in large file mode, see {@link LargeFilePolicy}.
  * 
  * @author ayman
  */
@@ -58,8 +67,22 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
     private Lexer lexer;
     private static final Logger LOG = Logger.getLogger(DefaultSyntaxKit.class.getName());
     public static final Pattern COMMA_REGEX = Pattern.compile("\\w+,\\w+");
-    private List<SyntaxComponent> editorComponents = new ArrayList<SyntaxComponent>();
+    private List<SyntaxComponent> editorComponents;
     private Map<String, SyntaxAction> editorActions = new HashMap<String, SyntaxAction>();
+    /**
+     * Client property of the editor pane, Boolean.TRUE while it is in large
+     * file mode.  Property change listeners of the pane are notified when the
+     * mode changes.
+     */
+    public static final String LARGE_FILE_MODE = "jsyntaxpane.largeFileMode";
+    // the editor the kit is installed on, the kits registered for content
+    // types are cloned for each editor, so these are set by install()
+    private JEditorPane pane;
+    private LargeFilePolicy largeFilePolicy;
+    private LargeFileMonitor largeFileMonitor;
+    private boolean largeFileMode;
+    private Boolean largeFileOverride;
+    private volatile boolean largeFileCheckPending;
     /**
      * Main Configuration of JSyntaxPane
      */
@@ -107,9 +130,35 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
         editorPane.setCaretColor(caretColor);
         addSyntaxActions(km_new, kitName);
         editorPane.setKeymap(km_new);
-        // install the components to the editor:
-        String[] components = CONFIG.getPrefixPropertyList(kitName, "Components");
+        pane = editorPane;
+        editorComponents = new ArrayList<SyntaxComponent>();
+        largeFilePolicy = new LargeFilePolicy();
+        largeFileMonitor = new LargeFileMonitor();
+        largeFilePolicy.config(CONFIG, kitName);
+        largeFileMode = largeFilePolicy.isLarge(editorPane.getDocument());
+        applyLargeFileMode();
+        editorPane.addPropertyChangeListener("document", largeFileMonitor);
+        editorPane.getDocument().addDocumentListener(largeFileMonitor);
+    }
+
+    /**
+     * Install the given components to the editor, and remove the installed
+     * components that are not in the list
+     */
+    private void installComponents(JEditorPane editorPane, String[] components) {
+        String kitName = this.getClass().getSimpleName();
+        List<String> names = Arrays.asList(components);
+        for (Iterator<SyntaxComponent> it = editorComponents.iterator(); it.hasNext();) {
+            SyntaxComponent comp = it.next();
+            if (!names.contains(comp.getClass().getName())) {
+                comp.deinstall(editorPane);
+                it.remove();
+            }
+        }
         for (String c : components) {
+            if (c.length() == 0 || isInstalled(c)) {
+                continue;
+            }
             try {
                 @SuppressWarnings("unchecked")
                 Class<SyntaxComponent> compClass = (Class<SyntaxComponent>) Class.forName(c);
@@ -127,8 +176,134 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
         }
     }
 
+    private boolean isInstalled(String className) {
+        for (SyntaxComponent comp : editorComponents) {
+            if (comp.getClass().getName().equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the editor is in large file mode
+     */
+    public boolean isLargeFileMode() {
+        return largeFileMode;
+    }
+
+    /**
+     * Put the editor in or out of large file mode, whatever the size of its
+     * document, until its document is replaced.  Passing null goes back to
+     * choosing the mode by the size of the document.  Must be called on the
+     * event dispatch thread.
+     * @param mode true for large file mode, or null
+     */
+    public void setLargeFileMode(Boolean mode) {
+        largeFileOverride = mode;
+        updateLargeFileMode(false);
+    }
+
+    private void updateLargeFileMode(boolean force) {
+        if (pane == null) {
+            return;
+        }
+        boolean large = (largeFileOverride != null) ? largeFileOverride
+                : (force ? largeFilePolicy.isLarge(pane.getDocument())
+                : isLarge(pane.getDocument()));
+        if (force || large != largeFileMode) {
+            largeFileMode = large;
+            applyLargeFileMode();
+        }
+    }
+
+    /**
+     * Return true if the document should be in large file mode, leaving it
+     * only once the document is well under the limits
+     */
+    private boolean isLarge(Document doc) {
+        return largeFileMode ? !largeFilePolicy.isSmall(doc) : largeFilePolicy.isLarge(doc);
+    }
+
+    /**
+     * Install the components of the current mode, and set up the document
+     * for it.  The undo limit of the mode does not discard the edits made
+     * before the mode was entered, it only stops the history from growing.
+     */
+    private void applyLargeFileMode() {
+        String kitName = this.getClass().getSimpleName();
+        installComponents(pane, largeFileMode ? largeFilePolicy.getComponents()
+                : CONFIG.getPrefixPropertyList(kitName, "Components"));
+        if (pane.getDocument() instanceof SyntaxDocument) {
+            SyntaxDocument doc = (SyntaxDocument) pane.getDocument();
+            doc.setHighlighting(largeFileMode ? largeFilePolicy.getHighlighting()
+                    : SyntaxDocument.Highlighting.FULL);
+            int undoLimit = largeFileMode ? largeFilePolicy.getUndoLimit()
+                    : SyntaxDocument.DEFAULT_UNDO_LIMIT;
+            doc.setUndoLimit(Math.max(undoLimit, doc.getUndoEditCount()));
+        }
+        pane.putClientProperty(LARGE_FILE_MODE, largeFileMode);
+    }
+
+    /**
+     * Checks the size of the document after each change, and switches the
+     * mode when it crosses the limits.  The switch is done later, since the
+     * document cannot be changed while it notifies its listeners.
+     */
+    private class LargeFileMonitor implements DocumentListener, PropertyChangeListener {
+
+        private final Runnable check = new Runnable() {
+
+            @Override
+            public void run() {
+                largeFileCheckPending = false;
+                updateLargeFileMode(false);
+            }
+        };
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (evt.getOldValue() instanceof Document) {
+                ((Document) evt.getOldValue()).removeDocumentListener(this);
+            }
+            if (evt.getNewValue() instanceof Document) {
+                ((Document) evt.getNewValue()).addDocumentListener(this);
+            }
+            largeFileOverride = null;
+            updateLargeFileMode(true);
+        }
+
+        private void changed(DocumentEvent e) {
+            if (largeFileOverride == null && !largeFileCheckPending &&
+                    isLarge(e.getDocument()) != largeFileMode) {
+                largeFileCheckPending = true;
+                SwingUtilities.invokeLater(check);
+            }
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            changed(e);
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            changed(e);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    }
+
     @Override
     public void deinstall(JEditorPane editorPane) {
+        if (pane == null) {
+            return;
+        }
+        editorPane.removePropertyChangeListener("document", largeFileMonitor);
+        editorPane.getDocument().removeDocumentListener(largeFileMonitor);
+        pane = null;
         for (SyntaxComponent c : editorComponents) {
             c.deinstall(editorPane);
         }
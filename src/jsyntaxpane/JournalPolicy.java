@@ -0,0 +1,93 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import jsyntaxpane.util.Configuration;
+
+/**
+ * Decides whether the edits of a document are kept on the disk, and for how
+ * long.  The settings are read from the kit configuration:
+ *
+ * UndoJournal.Enabled: true to keep an {@link UndoJournal} of each file
+ * UndoJournal.MaxSize: bytes a journal is cut down to half of when opened
+ * UndoJournal.MaxAge: days a journal not written to is kept, 0 for ever
+ * UndoJournal.MaxTotalSize: bytes all the journals may use, the ones
+ * written to last are kept, 0 for no limit
+ * RecoveryJournal.Enabled: true to keep the unsaved changes of each document
+ * in a {@link jsyntaxpane.util.RecoveryJournal}
+ */
+public class JournalPolicy {
+
+    public static final String PROPERTY_UNDO_ENABLED = "UndoJournal.Enabled";
+    public static final String PROPERTY_UNDO_MAX_SIZE = "UndoJournal.MaxSize";
+    public static final String PROPERTY_UNDO_MAX_AGE = "UndoJournal.MaxAge";
+    public static final String PROPERTY_UNDO_MAX_TOTAL_SIZE = "UndoJournal.MaxTotalSize";
+    public static final String PROPERTY_RECOVERY_ENABLED = "RecoveryJournal.Enabled";
+    public static final int DEFAULT_UNDO_MAX_AGE = 30;
+    public static final int DEFAULT_UNDO_MAX_TOTAL_SIZE = 256 * 1024 * 1024;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private boolean undoEnabled = true;
+    private long undoMaxSize = UndoJournal.DEFAULT_MAX_SIZE;
+    private int undoMaxAge = DEFAULT_UNDO_MAX_AGE;
+    private long undoMaxTotalSize = DEFAULT_UNDO_MAX_TOTAL_SIZE;
+    private boolean recoveryEnabled = true;
+
+    public JournalPolicy() {
+    }
+
+    public void config(Configuration config, String prefix) {
+        undoEnabled = config.getPrefixBoolean(prefix, PROPERTY_UNDO_ENABLED, true);
+        undoMaxSize = config.getPrefixInteger(prefix, PROPERTY_UNDO_MAX_SIZE,
+                (int) UndoJournal.DEFAULT_MAX_SIZE);
+        undoMaxAge = config.getPrefixInteger(prefix, PROPERTY_UNDO_MAX_AGE, DEFAULT_UNDO_MAX_AGE);
+        undoMaxTotalSize = config.getPrefixInteger(prefix, PROPERTY_UNDO_MAX_TOTAL_SIZE,
+                DEFAULT_UNDO_MAX_TOTAL_SIZE);
+        recoveryEnabled = config.getPrefixBoolean(prefix, PROPERTY_RECOVERY_ENABLED, true);
+    }
+
+    /**
+     * @return true if the files edited get an undo journal
+     */
+    public boolean isUndoJournalEnabled() {
+        return undoEnabled;
+    }
+
+    /**
+     * @return the size a journal is cut down to half of when it is opened
+     */
+    public long getUndoJournalMaxSize() {
+        return undoMaxSize;
+    }
+
+    /**
+     * @return milliseconds a journal not written to is kept, or 0
+     */
+    public long getUndoJournalMaxAge() {
+        return undoMaxAge * DAY_MILLIS;
+    }
+
+    /**
+     * @return bytes all the journals may use, or 0
+     */
+    public long getUndoJournalMaxTotalSize() {
+        return undoMaxTotalSize;
+    }
+
+    /**
+     * @return true if the unsaved changes are kept to be recovered
+     */
+    public boolean isRecoveryJournalEnabled() {
+        return recoveryEnabled;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.Document;
+import jsyntaxpane.util.Configuration;
+
+/**
+ * Decides when a document is too large for the full set of components and
+ * highlighting of its kit, and what the kit uses instead.  The limits are
+ * read from the kit configuration, a document crossing either of them is
+ * in large file mode, and stays in it until it is under LEAVE_PERCENT of
+ * both:
+ *
+ * LargeFile.Length: number of characters, 0 for no limit
+ * LargeFile.Lines: number of lines, 0 for no limit
+ * LargeFile.Highlighting: FULL, DEFERRED or PLAIN, see
+ * {@link SyntaxDocument.Highlighting}
+ * LargeFile.Components: the components installed instead of Components
+ * LargeFile.UndoLimit: the number of undoable edits kept
+ *
+ * @see DefaultSyntaxKit#setLargeFileMode(Boolean)
+ */
+public class LargeFilePolicy {
+
+    public static final String PROPERTY_LENGTH = "LargeFile.Length";
+    public static final String PROPERTY_LINES = "LargeFile.Lines";
+    public static final String PROPERTY_HIGHLIGHTING = "LargeFile.Highlighting";
+    public static final String PROPERTY_COMPONENTS = "LargeFile.Components";
+    public static final String PROPERTY_UNDO_LIMIT = "LargeFile.UndoLimit";
+    public static final int DEFAULT_LENGTH = 2 * 1024 * 1024;
+    public static final int DEFAULT_LINES = 50000;
+    public static final int DEFAULT_UNDO_LIMIT = 20;
+    /**
+     * Percent of the limits a document in large file mode must get under
+     * to leave it, so typing around a limit does not switch the mode back
+     * and forth
+     */
+    public static final int LEAVE_PERCENT = 90;
+    private int maxLength;
+    private int maxLines;
+    private SyntaxDocument.Highlighting highlighting;
+    private String[] components;
+    private int undoLimit;
+
+    public LargeFilePolicy() {
+    }
+
+    public void config(Configuration config, String prefix) {
+        maxLength = config.getPrefixInteger(prefix, PROPERTY_LENGTH, DEFAULT_LENGTH);
+        maxLines = config.getPrefixInteger(prefix, PROPERTY_LINES, DEFAULT_LINES);
+        undoLimit = config.getPrefixInteger(prefix, PROPERTY_UNDO_LIMIT, DEFAULT_UNDO_LIMIT);
+        components = config.getPrefixPropertyList(prefix, PROPERTY_COMPONENTS);
+        String h = config.getPrefixProperty(prefix, PROPERTY_HIGHLIGHTING, "DEFERRED");
+        try {
+            highlighting = SyntaxDocument.Highlighting.valueOf(h.trim());
+        } catch (IllegalArgumentException ex) {
+            LOG.log(Level.WARNING, "Invalid " + PROPERTY_HIGHLIGHTING + " for " +
+                    prefix + ": " + h, ex);
+            highlighting = SyntaxDocument.Highlighting.DEFERRED;
+        }
+    }
+
+    /**
+     * Return true if the document crosses one of the limits.  Both are
+     * checked in constant time, so this can be called on every change.
+     * @param doc
+     * @return true if the document should be in large file mode
+     */
+    public boolean isLarge(Document doc) {
+        return (maxLength > 0 && doc.getLength() > maxLength) ||
+                (maxLines > 0 && doc.getDefaultRootElement().getElementCount() > maxLines);
+    }
+
+    /**
+     * Return true if a document in large file mode got small enough to leave
+     * it: under LEAVE_PERCENT of both limits
+     * @param doc
+     * @return true if the document should leave large file mode
+     */
+    public boolean isSmall(Document doc) {
+        return (maxLength <= 0 || doc.getLength() <= (long) maxLength * LEAVE_PERCENT / 100) &&
+                (maxLines <= 0 || doc.getDefaultRootElement().getElementCount() <=
+                (long) maxLines * LEAVE_PERCENT / 100);
+    }
+
+    /**
+     * @return how much of a large document is lexed
+     */
+    public SyntaxDocument.Highlighting getHighlighting() {
+        return highlighting;
+    }
+
+    /**
+     * @return class names of the components kept in large file mode
+     */
+    public String[] getComponents() {
+        return components;
+    }
+
+    /**
+     * @return the number of undoable edits kept in large file mode
+     */
+    public int getUndoLimit() {
+        return undoLimit;
+    }
+    private static final Logger LOG = Logger.getLogger(LargeFilePolicy.class.getName());
+}
@@ -14,6 +14,7 @@
 package jsyntaxpane;
 
 import java.io.Reader;
+import javax.swing.text.Segment;
 
 /**
  * Lexers must implement these methods.  These are used in the Tokenizer 
@@ -31,6 +32,35 @@ public interface Lexer {
      */
     public void yyreset(Reader reader);
 
+    /**
+     * Reset the lexer to read from reader, as the text of a document starting
+     * at the given offset, in the given lexical state.  This is used to resume
+     * lexing from a point where the state was saved with {@link #yystate()}
+     * @param reader
+     * @param offset offset of the first character of reader
+     * @param state lexical state to start in
+     */
+    public void yyreset(Reader reader, int offset, int state);
+
+    /**
+     * Reset the lexer to scan the text of segment in place, as the text of a
+     * document starting at the given offset, in the given lexical state.
+     * Unlike the Reader versions nothing is copied: the segment array is
+     * scanned directly, so it must not change until lexing is done, and is
+     * referenced by the lexer until its next reset.
+     * @param text
+     * @param offset offset of the first character of text
+     * @param state lexical state to start in
+     */
+    public void yyreset(Segment text, int offset, int state);
+
+    /**
+     * Returns the current lexical state, which is the state the next call to
+     * yylex() starts in.  The initial state is 0.
+     * @return current lexical state
+     */
+    public int yystate();
+
     /**
      * This is called to return the next Token from the Input Reader
      * @return next token, or null if no more tokens.
@@ -38,6 +68,15 @@ public interface Lexer {
      */
     public Token yylex() throws java.io.IOException;
 
+    /**
+     * Returns the offset just past the furthest character the Lexer examined
+     * during the last call to yylex(), counting the end of input as one
+     * character.  Text at or after this offset had no effect on the returned
+     * token (or on any text skipped before it).
+     * @return the lookahead limit of the last yylex() call
+     */
+    public int yylookahead();
+
     /**
      * Returns the character at position <tt>pos</tt> from the
      * matched text.
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.text.Element;
+
+/**
+ * The x of a char about every INTERVAL chars along the long lines a
+ * {@link SyntaxView} showed, so it paints and maps the part of a long line
+ * that is visible by measuring from the checkpoint before it, not from the
+ * start of the line.
+ *
+ * The checkpoints of a line are added as far along it as they are needed.
+ * A change to the text of a line drops the ones after it, as their x
+ * depends on the text before them.  The checkpoints of the MAX_LINES lines
+ * used last are kept.
+ */
+class LineCheckpoints {
+
+    /**
+     * Lines of more chars than this are long
+     */
+    static final int LONG_LINE = 4096;
+    static final int INTERVAL = 256;
+    static final int MAX_LINES = 8;
+    private final Map<Element, Line> lines = new LinkedHashMap<Element, Line>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Element, Line> eldest) {
+            return size() > MAX_LINES;
+        }
+    };
+
+    static boolean isLong(Element line) {
+        return line.getEndOffset() - line.getStartOffset() > LONG_LINE;
+    }
+
+    /**
+     * @return the checkpoints of a line, with only the one at its start if
+     * it has none yet
+     */
+    Line get(Element line) {
+        Line cp = lines.get(line);
+        if (cp == null) {
+            cp = new Line();
+            lines.put(line, cp);
+        }
+        return cp;
+    }
+
+    void clear() {
+        lines.clear();
+    }
+
+    /**
+     * The text of a line was changed at the given offset of the document
+     */
+    void changed(Element line, int offset) {
+        Line cp = lines.get(line);
+        if (cp != null) {
+            cp.count = cp.indexOfOffset(offset - line.getStartOffset()) + 1;
+        }
+    }
+
+    void removed(Element line) {
+        lines.remove(line);
+    }
+
+    /**
+     * The checkpoints of a line: offsets from the start of the line, and
+     * their x from the x of the start
+     */
+    static class Line {
+
+        private int[] offsets = new int[16];
+        private int[] xs = new int[16];
+        private int count = 1;
+
+        int getCount() {
+            return count;
+        }
+
+        int getOffset(int i) {
+            return offsets[i];
+        }
+
+        int getX(int i) {
+            return xs[i];
+        }
+
+        void add(int offset, int x) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+                xs = Arrays.copyOf(xs, 2 * count);
+            }
+            offsets[count] = offset;
+            xs[count] = x;
+            count++;
+        }
+
+        /**
+         * @return the index of the last checkpoint at or before the offset
+         */
+        int indexOfOffset(int offset) {
+            return indexOf(offsets, offset);
+        }
+
+        /**
+         * @return the index of the last checkpoint at or before the x
+         */
+        int indexOfX(int x) {
+            return indexOf(xs, x);
+        }
+
+        private int indexOf(int[] values, int value) {
+            int i = Arrays.binarySearch(values, 0, count, value);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return Math.max(i, 0);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+
+/**
+ * The laid out glyphs of the lines a {@link SyntaxView} painted last, so a
+ * repaint of the same text only draws them.
+ *
+ * A line is found by its text, the styles of its parts and the x it is
+ * painted at, so an edit only misses the lines it changed, and lines moved
+ * by it are still found.  The least recently painted lines are dropped
+ * once there are more than MAX_LINES.  The cache is emptied when the font
+ * or the FontRenderContext changes.  Colors are read from the styles as
+ * the lines are drawn.
+ *
+ * Text is laid out like Utilities.drawTabbedText() does, and measured with
+ * the same FontMetrics, so the glyphs are where modelToView() expects them.
+ * With a fixed-pitch font the chars SyntaxView.isColumnChar() accepts are
+ * measured as a column wide each instead.  Text that may need more than
+ * simple glyphs, from Hebrew on, is not cached.
+ */
+class LineRenderCache {
+
+    /**
+     * The number of lines kept, at most
+     */
+    static final int MAX_LINES = 512;
+    private final Map<Key, Line> lines = new LinkedHashMap<Key, Line>(64, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Line> eldest) {
+            return size() > MAX_LINES;
+        }
+    };
+    /**
+     * The font and its metrics in each font style of the styles, by the
+     * font style.  They are dropped with the lines when the font changes.
+     */
+    private final Font[] fonts = new Font[32];
+    private final FontMetrics[] fontMetrics = new FontMetrics[32];
+    private final Key probe = new Key();
+    private Font font;
+    private FontRenderContext frc;
+
+    /**
+     * Draw text in parts of the given styles, from the cache or else laid
+     * out and added to it
+     * @param text the text to draw
+     * @param styles the style of each part
+     * @param bounds the start of each part in the text, and the end of the
+     * last one
+     * @param runs the number of parts
+     * @param startOffset offset of the text in the document
+     * @param columnWidth width of a char of a fixed-pitch font, or 0
+     * @return the x after the text, or -1 if it was not drawn as it cannot
+     * be cached
+     */
+    int draw(Graphics2D graphics, int x, int y, Segment text, SyntaxStyle[] styles,
+            int[] bounds, int runs, TabExpander e, int startOffset, int columnWidth) {
+        Font f = graphics.getFont();
+        FontRenderContext context = graphics.getFontRenderContext();
+        if (f != font || !context.equals(frc)) {
+            lines.clear();
+            Arrays.fill(fonts, null);
+            Arrays.fill(fontMetrics, null);
+            font = f;
+            frc = context;
+        }
+        probe.set(text.array, text.offset, text.count, x, styles, bounds, runs);
+        Line line = lines.get(probe);
+        if (line == null || !line.isCurrent()) {
+            for (int i = text.offset; i < text.offset + text.count; i++) {
+                if (text.array[i] >= '\u0590') {
+                    return -1;
+                }
+            }
+            line = layout(graphics, x, text, styles, bounds, runs, e, startOffset, columnWidth);
+            lines.put(probe.copy(), line);
+        }
+        return line.draw(graphics, x, y);
+    }
+
+    private Font getFont(int style) {
+        if (style < 0 || style >= fonts.length) {
+            return font.deriveFont(style);
+        }
+        if (fonts[style] == null) {
+            fonts[style] = font.deriveFont(style);
+        }
+        return fonts[style];
+    }
+
+    private FontMetrics getFontMetrics(Graphics2D graphics, int style) {
+        if (style < 0 || style >= fontMetrics.length) {
+            return graphics.getFontMetrics(getFont(style));
+        }
+        if (fontMetrics[style] == null) {
+            fontMetrics[style] = graphics.getFontMetrics(getFont(style));
+        }
+        return fontMetrics[style];
+    }
+
+    /**
+     * @return the width of the chars from start to end, as columns if they
+     * all are a column wide
+     */
+    private static int charsWidth(FontMetrics metrics, int columnWidth, char[] chars,
+            int start, int end) {
+        if (columnWidth > 0) {
+            int i = start;
+            while (i < end && SyntaxView.isColumnChar(chars[i])) {
+                i++;
+            }
+            if (i == end) {
+                return (end - start) * columnWidth;
+            }
+        }
+        return metrics.charsWidth(chars, start, end - start);
+    }
+
+    private Line layout(Graphics2D graphics, int x, Segment text, SyntaxStyle[] styles,
+            int[] bounds, int runs, TabExpander e, int startOffset, int columnWidth) {
+        Line line = new Line(runs);
+        int cx = x;
+        char[] chars = text.array;
+        for (int r = 0; r < runs; r++) {
+            SyntaxStyle style = styles[r];
+            Font f = getFont(style.getFontStyle());
+            FontMetrics metrics = getFontMetrics(graphics, style.getFontStyle());
+            line.styles[r] = style;
+            line.fontStyles[r] = style.getFontStyle();
+            line.ascents[r] = metrics.getAscent();
+            line.heights[r] = metrics.getAscent() + metrics.getDescent();
+            line.runX[r] = cx - x;
+            line.firstGlyphs[r] = line.glyphCount;
+            int end = text.offset + bounds[r + 1];
+            int flush = text.offset + bounds[r];
+            for (int i = flush; i <= end; i++) {
+                char c = (i < end) ? chars[i] : '\n';
+                if (c != '\t' && c != '\n' && c != '\r') {
+                    continue;
+                }
+                if (i > flush) {
+                    line.addGlyphs(f.createGlyphVector(frc, Arrays.copyOfRange(chars, flush, i)),
+                            cx - x);
+                    cx += charsWidth(metrics, columnWidth, chars, flush, i);
+                }
+                if (c == '\t' && i < end) {
+                    if (e != null) {
+                        cx = (int) e.nextTabStop(cx, startOffset + i - text.offset);
+                    } else {
+                        cx += metrics.charWidth(' ');
+                    }
+                }
+                flush = i + 1;
+            }
+            line.runWidths[r] = cx - x - line.runX[r];
+        }
+        line.firstGlyphs[runs] = line.glyphCount;
+        line.width = cx - x;
+        return line;
+    }
+
+    /**
+     * The text of a line and the styles of its parts.  The probe refers to
+     * the text of the document, and the keys in the map to copies.
+     */
+    private static class Key {
+
+        char[] text;
+        int offset;
+        int length;
+        int x;
+        SyntaxStyle[] styles;
+        int[] bounds;
+        int runs;
+        int hash;
+
+        void set(char[] text, int offset, int length, int x, SyntaxStyle[] styles,
+                int[] bounds, int runs) {
+            this.text = text;
+            this.offset = offset;
+            this.length = length;
+            this.x = x;
+            this.styles = styles;
+            this.bounds = bounds;
+            this.runs = runs;
+            int h = x;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + text[i];
+            }
+            for (int r = 0; r < runs; r++) {
+                h = 31 * h + bounds[r];
+                h = 31 * h + System.identityHashCode(styles[r]);
+            }
+            hash = h;
+        }
+
+        Key copy() {
+            Key key = new Key();
+            key.text = Arrays.copyOfRange(text, offset, offset + length);
+            key.length = length;
+            key.x = x;
+            key.styles = Arrays.copyOf(styles, runs);
+            key.bounds = Arrays.copyOf(bounds, runs + 1);
+            key.runs = runs;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            if (k.hash != hash || k.length != length || k.x != x || k.runs != runs) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (k.text[k.offset + i] != text[offset + i]) {
+                    return false;
+                }
+            }
+            for (int r = 0; r < runs; r++) {
+                if (k.styles[r] != styles[r] || k.bounds[r] != bounds[r]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The glyphs of a line, with their x from the start of the line
+     */
+    private static class Line {
+
+        final SyntaxStyle[] styles;
+        final int[] fontStyles;
+        final int[] ascents;
+        final int[] heights;
+        final int[] runX;
+        final int[] runWidths;
+        /**
+         * The index of the first glyph vector of each part, and the number
+         * of them after the last
+         */
+        final int[] firstGlyphs;
+        GlyphVector[] glyphs = new GlyphVector[4];
+        int[] glyphX = new int[4];
+        int glyphCount;
+        int width;
+
+        Line(int runs) {
+            styles = new SyntaxStyle[runs];
+            fontStyles = new int[runs];
+            ascents = new int[runs];
+            heights = new int[runs];
+            runX = new int[runs];
+            runWidths = new int[runs];
+            firstGlyphs = new int[runs + 1];
+        }
+
+        void addGlyphs(GlyphVector glyph, int x) {
+            if (glyphCount == glyphs.length) {
+                glyphs = Arrays.copyOf(glyphs, 2 * glyphCount);
+                glyphX = Arrays.copyOf(glyphX, 2 * glyphCount);
+            }
+            glyphs[glyphCount] = glyph;
+            glyphX[glyphCount] = x;
+            glyphCount++;
+        }
+
+        /**
+         * @return false if the font of a style was changed since the line
+         * was laid out
+         */
+        boolean isCurrent() {
+            for (int r = 0; r < styles.length; r++) {
+                if (styles[r].getFontStyle() != fontStyles[r]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Draw the parts like SyntaxStyle.drawText() does
+         */
+        int draw(Graphics2D graphics, int x, int y) {
+            for (int r = 0; r < styles.length; r++) {
+                int rX = x + runX[r] - 1;
+                int rY = y - ascents[r];
+                if ((fontStyles[r] & 0x10) != 0) {
+                    graphics.setColor(SyntaxStyle.BACKGROUND_COLOR);
+                    graphics.fillRect(rX, rY, runWidths[r] + 2, heights[r]);
+                }
+                graphics.setColor(styles[r].getColor());
+                for (int i = firstGlyphs[r]; i < firstGlyphs[r + 1]; i++) {
+                    graphics.drawGlyphVector(glyphs[i], x + glyphX[i], y);
+                }
+                if ((fontStyles[r] & 0x8) != 0) {
+                    graphics.setColor(Color.RED);
+                    graphics.drawRect(rX, rY, runWidths[r] + 2, heights[r]);
+                }
+            }
+            return x + width;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The widths of the lines of a document that a {@link SyntaxView} measured,
+ * and the widest of them.
+ *
+ * Lines are added with an unknown width, and the view measures them when it
+ * paints them, so only the lines that were shown are ever measured.  The
+ * widths are kept in blocks of up to 2 * BLOCK_SIZE lines with the widest of
+ * each block, so adding, removing or changing a line only moves the widths
+ * of its block and only looks at the blocks, not every line, to find the
+ * widest again.
+ */
+class LineWidthIndex {
+
+    /**
+     * The width of a line not measured yet
+     */
+    static final int UNKNOWN = -1;
+    static final int BLOCK_SIZE = 512;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private int lineCount;
+    private int max;
+    private boolean maxValid = true;
+
+    /**
+     * Forget all widths
+     * @param lines the number of lines, all of unknown width
+     */
+    void reset(int lines) {
+        blocks.clear();
+        lineCount = 0;
+        max = 0;
+        maxValid = true;
+        insert(0, lines);
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Replace lines with lines of unknown width
+     * @param index the first line replaced
+     * @param removed the number of lines removed
+     * @param added the number of lines added
+     */
+    void replace(int index, int removed, int added) {
+        remove(index, removed);
+        insert(index, added);
+    }
+
+    /**
+     * @return the width of a line, or UNKNOWN
+     */
+    int get(int line) {
+        int b = findBlock(line);
+        return blocks.get(b).widths[line - blockStart];
+    }
+
+    void set(int line, int width) {
+        int b = findBlock(line);
+        Block block = blocks.get(b);
+        int i = line - blockStart;
+        int old = block.widths[i];
+        block.widths[i] = width;
+        if (width >= block.max) {
+            block.max = width;
+            max = Math.max(max, width);
+        } else if (old == block.max) {
+            block.updateMax();
+            if (old == max) {
+                maxValid = false;
+            }
+        }
+    }
+
+    /**
+     * @return the width of the widest line measured, or 0
+     */
+    int getMax() {
+        if (!maxValid) {
+            max = 0;
+            for (Block block : blocks) {
+                max = Math.max(max, block.max);
+            }
+            maxValid = true;
+        }
+        return max;
+    }
+
+    /**
+     * The start of the block findBlock() found
+     */
+    private int blockStart;
+
+    /**
+     * @return the index of the block with the given line, or with the end
+     * of the lines
+     */
+    private int findBlock(int line) {
+        if (line < 0 || line > lineCount) {
+            throw new IndexOutOfBoundsException("line " + line + " of " + lineCount);
+        }
+        int start = 0;
+        int last = blocks.size() - 1;
+        for (int b = 0; b < last; b++) {
+            int count = blocks.get(b).count;
+            if (line < start + count) {
+                blockStart = start;
+                return b;
+            }
+            start += count;
+        }
+        blockStart = start;
+        return last;
+    }
+
+    private void insert(int index, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (blocks.isEmpty()) {
+            blocks.add(new Block(0));
+        }
+        int b = findBlock(index);
+        Block block = blocks.get(b);
+        int at = index - blockStart;
+        if (block.count + count <= 2 * BLOCK_SIZE) {
+            block.insert(at, count);
+        } else {
+            // split the block at the lines added, with the lines added in
+            // full blocks between its halves
+            Block tail = new Block(block.count - at);
+            System.arraycopy(block.widths, at, tail.widths, 0, block.count - at);
+            tail.count = block.count - at;
+            tail.updateMax();
+            block.count = at;
+            block.updateMax();
+            List<Block> added = new ArrayList<Block>();
+            for (int n = count; n > 0; n -= BLOCK_SIZE) {
+                Block full = new Block(BLOCK_SIZE);
+                full.insert(0, Math.min(n, BLOCK_SIZE));
+                added.add(full);
+            }
+            added.add(tail);
+            blocks.addAll(b + 1, added);
+            if (block.count == 0) {
+                blocks.remove(b);
+            }
+        }
+        lineCount += count;
+    }
+
+    private void remove(int index, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (index < 0 || index + count > lineCount) {
+            throw new IndexOutOfBoundsException("lines " + index + "+" + count + " of " + lineCount);
+        }
+        int b = findBlock(index);
+        int at = index - blockStart;
+        int left = count;
+        while (left > 0) {
+            Block block = blocks.get(b);
+            int n = Math.min(left, block.count - at);
+            int oldMax = block.max;
+            block.remove(at, n);
+            if (oldMax == max && block.max < oldMax) {
+                maxValid = false;
+            }
+            left -= n;
+            if (block.count == 0) {
+                blocks.remove(b);
+            } else {
+                b++;
+            }
+            at = 0;
+        }
+        lineCount -= count;
+        // join the blocks around the lines removed if they got small
+        int first = Math.max(findBlock(Math.min(index, lineCount)) - 1, 0);
+        if (first + 1 < blocks.size()) {
+            Block block = blocks.get(first);
+            Block next = blocks.get(first + 1);
+            if (block.count + next.count <= BLOCK_SIZE) {
+                block.insert(block.count, next.count);
+                System.arraycopy(next.widths, 0, block.widths, block.count - next.count,
+                        next.count);
+                block.max = Math.max(block.max, next.max);
+                blocks.remove(first + 1);
+            }
+        }
+    }
+
+    /**
+     * The widths of a run of lines
+     */
+    private static class Block {
+
+        int[] widths;
+        int count;
+        int max;
+
+        Block(int capacity) {
+            widths = new int[Math.max(capacity, 16)];
+        }
+
+        void insert(int at, int n) {
+            if (count + n > widths.length) {
+                int[] grown = new int[Math.max(count + n, 2 * widths.length)];
+                System.arraycopy(widths, 0, grown, 0, count);
+                widths = grown;
+            }
+            System.arraycopy(widths, at, widths, at + n, count - at);
+            for (int i = at; i < at + n; i++) {
+                widths[i] = UNKNOWN;
+            }
+            count += n;
+        }
+
+        void remove(int at, int n) {
+            System.arraycopy(widths, at + n, widths, at, count - at - n);
+            count -= n;
+            updateMax();
+        }
+
+        void updateMax() {
+            max = 0;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, widths[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+
+/**
+ * A read only SyntaxDocument of a {@link MappedFileContent}, for files too
+ * large to be read into memory.
+ *
+ * The lines are not kept as elements: the root element makes them from the
+ * line index of the content when they are asked for.  The text is not
+ * lexed as a whole either.  Tokens are only made for the blocks of lines
+ * that are asked for, which are the lines shown, each block lexed on its
+ * own from the initial lexical state.  The last CACHED_TOKEN_BLOCKS blocks
+ * lexed are kept.
+ */
+public class MappedDocument extends SyntaxDocument {
+
+    /**
+     * Number of lines lexed at a time
+     */
+    static final int TOKEN_BLOCK_LINES = MappedFileContent.LINE_SAMPLE;
+    /**
+     * Number of chars of a block of lines lexed at most, the rest of a block
+     * of very long lines is shown as plain text
+     */
+    static final int MAX_TOKEN_BLOCK_SIZE = 256 * 1024;
+    /**
+     * Number of blocks of tokens kept
+     */
+    static final int CACHED_TOKEN_BLOCKS = 16;
+    private static final Logger log = Logger.getLogger(MappedDocument.class.getName());
+    private final MappedFileContent content;
+    private final Element root = new LineRoot();
+    private final Map<Integer, List<Token>> tokenBlocks =
+            new LinkedHashMap<Integer, List<Token>>(CACHED_TOKEN_BLOCKS * 2, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<Token>> eldest) {
+            return size() > CACHED_TOKEN_BLOCKS;
+        }
+    };
+
+    /**
+     * Create a document of the given content, which must be indexed
+     * @param lexer
+     * @param content
+     */
+    public MappedDocument(Lexer lexer, MappedFileContent content) {
+        super(lexer, content);
+        this.content = content;
+        super.setHighlighting(Highlighting.PLAIN);
+        putProperty(DefaultEditorKit.EndOfLineStringProperty, content.getLineEnd());
+    }
+
+    /**
+     * The text is never lexed as a whole, so this does nothing
+     */
+    @Override
+    public void setHighlighting(Highlighting highlighting) {
+    }
+
+    @Override
+    public Element getDefaultRootElement() {
+        return root;
+    }
+
+    @Override
+    public Iterator<Token> getTokens(int start, int end) {
+        List<Token> tokens = new ArrayList<Token>();
+        int last = root.getElementIndex(Math.max(start, end - 1)) / TOKEN_BLOCK_LINES;
+        for (int block = root.getElementIndex(start) / TOKEN_BLOCK_LINES; block <= last; block++) {
+            for (Token t : getTokenBlock(block)) {
+                if (t.end() > start && t.start < end) {
+                    tokens.add(t);
+                }
+            }
+        }
+        return tokens.iterator();
+    }
+
+    private List<Token> getTokenBlock(int block) {
+        synchronized (tokenBlocks) {
+            List<Token> tokens = tokenBlocks.get(block);
+            if (tokens == null) {
+                tokens = lexBlock(block);
+                tokenBlocks.put(block, tokens);
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Lex the text of a block of lines, from the initial state
+     */
+    private List<Token> lexBlock(int block) {
+        int line = block * TOKEN_BLOCK_LINES;
+        int start = content.getLineStart(line);
+        int end = (line + TOKEN_BLOCK_LINES < content.getLineCount())
+                ? content.getLineStart(line + TOKEN_BLOCK_LINES) : getLength();
+        end = Math.min(end, start + MAX_TOKEN_BLOCK_SIZE);
+        List<Token> tokens = new ArrayList<Token>();
+        try {
+            Segment text = new Segment();
+            content.getChars(start, end - start, text);
+            synchronized (lexer) {
+                lexer.yyreset(text, start, 0);
+                Token t;
+                while ((t = lexer.yylex()) != null) {
+                    tokens.add(t);
+                }
+            }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * @return the line with the most chars
+     */
+    public Element getLongestLine() {
+        return root.getElement(content.getLongestLine());
+    }
+
+    /**
+     * The root element, with the lines of the content as children
+     */
+    private class LineRoot implements Element {
+
+        @Override
+        public Document getDocument() {
+            return MappedDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return ParagraphElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return content.length();
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return content.getLineIndex(Math.max(0, Math.min(offset, getLength())));
+        }
+
+        @Override
+        public int getElementCount() {
+            return content.getLineCount();
+        }
+
+        @Override
+        public Element getElement(int index) {
+            if (index < 0 || index >= content.getLineCount()) {
+                return null;
+            }
+            int start = content.getLineStart(index);
+            int end = (index + 1 < content.getLineCount())
+                    ? content.getLineStart(index + 1) : content.length();
+            return new Line(start, end);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+    }
+
+    /**
+     * A line of the content
+     */
+    private class Line implements Element {
+
+        private final int start;
+        private final int end;
+
+        Line(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Document getDocument() {
+            return MappedDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return root;
+        }
+
+        @Override
+        public String getName() {
+            return ContentElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return start;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return end;
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return -1;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 0;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return true;
+        }
+
+        /**
+         * The lines are made as they are asked for, so two are the same if
+         * they start and end at the same offsets
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Line)) {
+                return false;
+            }
+            Line line = (Line) obj;
+            return line.start == start && line.end == end;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * start + end;
+        }
+    }
+}
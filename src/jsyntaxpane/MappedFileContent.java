@@ -0,0 +1,434 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * The read only text of a UTF-8 file, mapped into memory instead of read.
+ *
+ * The file is cut into pages of about PAGE_SIZE bytes, which are decoded
+ * when their text is asked for.  Only the last CACHED_PAGES pages used are
+ * kept decoded, so the memory used does not grow with the file.  Line ends
+ * are read as \n, like DefaultEditorKit.read() does.
+ *
+ * Before the text can be used, the pages must be indexed by calling
+ * indexPage() until it returns false.  Indexing decodes each page once to
+ * find where its text starts and where its lines start.  The start of every
+ * LINE_SAMPLE-th line is kept; the lines between are found again from the
+ * text when asked for.
+ *
+ * Offsets into a Document are ints, so a file can have at most about 2G
+ * chars of text.
+ */
+public class MappedFileContent implements AbstractDocument.Content {
+
+    /**
+     * Number of bytes in a page
+     */
+    static final int PAGE_SIZE = 256 * 1024;
+    /**
+     * Number of pages kept decoded
+     */
+    static final int CACHED_PAGES = 32;
+    /**
+     * Every LINE_SAMPLE-th line start is kept by the index
+     */
+    static final int LINE_SAMPLE = 256;
+    /**
+     * Number of blocks of LINE_SAMPLE line starts kept
+     */
+    static final int CACHED_BLOCKS = 64;
+    /**
+     * Number of bytes mapped by each buffer.  The buffers overlap a little,
+     * so that a page is always in one buffer.
+     */
+    private static final long REGION_SIZE = 1024L * 1024 * 1024;
+    private static final int REGION_OVERLAP = 8;
+    private static final char[] END = {'\n'};
+    private final File file;
+    private final long size;
+    private final MappedByteBuffer[] regions;
+    private final CharsetDecoder decoder;
+    /**
+     * The bytes of the page decoded.  Decoding from an array is many times
+     * faster than from the mapped buffer.
+     */
+    private final byte[] pageBytes = new byte[PAGE_SIZE + 4];
+    private final int pageCount;
+    /**
+     * The byte offset of each page, and the size of the file at the end
+     */
+    private final long[] pageStarts;
+    /**
+     * The char offset of each page indexed, and the length of the text after
+     * the last one
+     */
+    private final int[] pageOffsets;
+    private int indexedPages;
+    private int[] lineSamples = new int[16];
+    private int lineCount = 1;
+    private int lineStart;
+    private int longestLine;
+    private int longestLength;
+    private boolean crlf;
+    private boolean cr;
+    private final Map<Integer, char[]> pages =
+            new LinkedHashMap<Integer, char[]>(CACHED_PAGES * 2, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private final Map<Integer, int[]> blocks =
+            new LinkedHashMap<Integer, int[]>(CACHED_BLOCKS * 2, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    /**
+     * Map the given file.  The file should not change while it is mapped.
+     * @param file
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedFileContent(File file) throws IOException {
+        this.file = file;
+        this.decoder = Charset.forName("UTF-8").newDecoder().
+                onMalformedInput(CodingErrorAction.REPLACE).
+                onUnmappableCharacter(CodingErrorAction.REPLACE);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            size = channel.size();
+            regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, REGION_SIZE + REGION_OVERLAP));
+            }
+        } finally {
+            in.close();
+        }
+        pageCount = (int) ((size + PAGE_SIZE - 1) / PAGE_SIZE);
+        pageStarts = new long[pageCount + 1];
+        for (int i = 0; i < pageCount; i++) {
+            pageStarts[i] = charStart((long) i * PAGE_SIZE);
+        }
+        pageStarts[pageCount] = size;
+        pageOffsets = new int[pageCount + 1];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the first byte offset at or after pos that does not continue
+     * a UTF-8 sequence
+     */
+    private long charStart(long pos) {
+        for (int i = 0; i < 3 && pos < size && (byteAt(pos) & 0xC0) == 0x80; i++) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private byte byteAt(long pos) {
+        int region = (int) (pos / REGION_SIZE);
+        return regions[region].get((int) (pos - region * REGION_SIZE));
+    }
+
+    /**
+     * Decode a page, with its line ends turned into \n.  A \r\n split between
+     * two pages is read as the \n of the second page.
+     */
+    private synchronized char[] decodePage(int page) {
+        long start = pageStarts[page];
+        long end = pageStarts[page + 1];
+        int region = (int) (start / REGION_SIZE);
+        ByteBuffer mapped = regions[region].duplicate();
+        mapped.position((int) (start - region * REGION_SIZE));
+        mapped.get(pageBytes, 0, (int) (end - start));
+        ByteBuffer bytes = ByteBuffer.wrap(pageBytes, 0, (int) (end - start));
+        CharBuffer chars = CharBuffer.allocate((int) (end - start));
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        char[] text = chars.array();
+        int length = chars.position();
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (c == '\r') {
+                if (i + 1 < length) {
+                    if (text[i + 1] == '\n') {
+                        crlf = true;
+                        continue;
+                    }
+                } else if (end < size && byteAt(end) == '\n') {
+                    crlf = true;
+                    continue;
+                }
+                cr = true;
+                c = '\n';
+            }
+            text[n++] = c;
+        }
+        return (n == text.length) ? text : Arrays.copyOf(text, n);
+    }
+
+    private char[] getPage(int page) {
+        synchronized (pages) {
+            char[] text = pages.get(page);
+            if (text == null) {
+                text = decodePage(page);
+                pages.put(page, text);
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Index the next page.  Must be called until it returns false before the
+     * text is used.
+     * @return true if there are more pages to index
+     * @throws IOException if the file has more text than a document can hold
+     */
+    public boolean indexPage() throws IOException {
+        if (indexedPages == pageCount) {
+            return false;
+        }
+        int page = indexedPages;
+        char[] text = decodePage(page);
+        int offset = pageOffsets[page];
+        if (text.length >= Integer.MAX_VALUE - 1 - offset) {
+            throw new IOException("File too large");
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n') {
+                endLine(offset + i);
+            }
+        }
+        pageOffsets[page + 1] = offset + text.length;
+        indexedPages++;
+        // the last line ends at the implicit \n
+        if (indexedPages == pageCount && pageOffsets[pageCount] - lineStart > longestLength) {
+            longestLength = pageOffsets[pageCount] - lineStart;
+            longestLine = lineCount - 1;
+        }
+        return indexedPages < pageCount;
+    }
+
+    /**
+     * Count the line ending with the \n at the given offset
+     */
+    private void endLine(int offset) {
+        if (offset - lineStart > longestLength) {
+            longestLength = offset - lineStart;
+            longestLine = lineCount - 1;
+        }
+        lineStart = offset + 1;
+        if (lineCount % LINE_SAMPLE == 0) {
+            if (lineCount / LINE_SAMPLE == lineSamples.length) {
+                lineSamples = Arrays.copyOf(lineSamples, lineSamples.length * 2);
+            }
+            lineSamples[lineCount / LINE_SAMPLE] = lineStart;
+        }
+        lineCount++;
+    }
+
+    /**
+     * @return the part of the file indexed, from 0 to 100
+     */
+    public int getIndexProgress() {
+        return (pageCount == 0) ? 100 : (int) ((long) indexedPages * 100 / pageCount);
+    }
+
+    /**
+     * @return the line end the file uses, among those seen so far
+     */
+    public String getLineEnd() {
+        return crlf ? "\r\n" : cr ? "\r" : "\n";
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return the index of the line with the most chars
+     */
+    public int getLongestLine() {
+        return longestLine;
+    }
+
+    /**
+     * @return the offset of the first char of a line
+     */
+    public int getLineStart(int line) {
+        return getLineBlock(line / LINE_SAMPLE)[line % LINE_SAMPLE];
+    }
+
+    /**
+     * @return the index of the line with the char at the given offset
+     */
+    public int getLineIndex(int offset) {
+        int block = search(lineSamples, (lineCount - 1) / LINE_SAMPLE + 1, offset);
+        int[] starts = getLineBlock(block);
+        return block * LINE_SAMPLE + search(starts, starts.length, offset);
+    }
+
+    /**
+     * @return the index of the last of the first count values that is not
+     * more than value, or 0
+     */
+    private static int search(int[] values, int count, int value) {
+        int lo = 1;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Get the starts of the LINE_SAMPLE lines from block * LINE_SAMPLE, or
+     * of as many as there are
+     */
+    private int[] getLineBlock(int block) {
+        synchronized (blocks) {
+            int[] starts = blocks.get(block);
+            if (starts != null) {
+                return starts;
+            }
+            starts = new int[Math.min(LINE_SAMPLE, lineCount - block * LINE_SAMPLE)];
+            int pos = lineSamples[block];
+            starts[0] = pos;
+            Segment s = new Segment();
+            s.setPartialReturn(true);
+            int n = 1;
+            try {
+                while (n < starts.length) {
+                    getChars(pos, length() - pos, s);
+                    for (int i = 0; i < s.count && n < starts.length; i++) {
+                        if (s.array[s.offset + i] == '\n') {
+                            starts[n++] = pos + i + 1;
+                        }
+                    }
+                    pos += s.count;
+                }
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+            blocks.put(block, starts);
+            return starts;
+        }
+    }
+
+    @Override
+    public Position createPosition(final int offset) throws BadLocationException {
+        // the text never moves
+        return new Position() {
+
+            @Override
+            public int getOffset() {
+                return offset;
+            }
+        };
+    }
+
+    @Override
+    public int length() {
+        return pageOffsets[indexedPages] + 1;
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        throw new BadLocationException("Read only", where);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        throw new BadLocationException("Read only", where);
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        int end = pageOffsets[indexedPages];
+        if (where < 0 || len < 0 || where + len > end + 1) {
+            throw new BadLocationException("Invalid location", where + len);
+        }
+        if (where == end) {
+            txt.array = END;
+            txt.offset = 0;
+            txt.count = len;
+            return;
+        }
+        int page = search(pageOffsets, indexedPages, where);
+        char[] text = getPage(page);
+        int offset = where - pageOffsets[page];
+        if (offset + len <= text.length || txt.isPartialReturn()) {
+            txt.array = text;
+            txt.offset = offset;
+            txt.count = Math.min(len, text.length - offset);
+            return;
+        }
+        char[] copy = new char[len];
+        int n = 0;
+        while (n < len) {
+            int count = Math.min(len - n, text.length - offset);
+            System.arraycopy(text, offset, copy, n, count);
+            n += count;
+            page++;
+            offset = 0;
+            text = (page < indexedPages) ? getPage(page) : END;
+        }
+        txt.array = copy;
+        txt.offset = 0;
+        txt.count = len;
+    }
+}
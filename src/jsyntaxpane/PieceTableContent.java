@@ -0,0 +1,788 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * A document Content kept as a piece table: the text is a sequence of
+ * pieces of read only buffers, a large one for each text inserted with
+ * {@link #insertChars(int, char[], int)}, such as a loaded file, and small
+ * ones the typed and pasted text is appended to.  Unlike GapContent, an
+ * edit never moves the text around it, so edits far apart cost the same as
+ * edits next to each other: O(log pieces).
+ *
+ * The pieces are kept in a balanced tree by their order in the text, with
+ * the number of characters under each node.  Removed pieces stay in the
+ * tree with no length, so an undoable edit only records which buffer
+ * characters it inserted or removed, and undo and redo make them visible
+ * again or hide them, without ever copying text.  When the edit that can
+ * make them visible again dies, they are dropped from the tree, so the
+ * edits must be given {@link UndoableEdit#die()} when they are discarded.
+ * The edit of the last change can be taken from the content with
+ * {@link #takeEdit()}, by a document that undoes the changes itself.
+ *
+ * A Position is tied to the buffer character at its offset, and follows it
+ * through edits, or stays where it was removed.  This gives the positions
+ * of GapContent, except for one case: a Position that was moved to offset
+ * 0 by a removal moves with the text inserted at 0 afterwards, where
+ * GapContent keeps it at 0.  Positions created at 0 always stay at 0.
+ *
+ * Like GapContent, it can be read by several threads at once, but edits
+ * need the write lock of the document, and so does the death of their
+ * undoable edits.
+ */
+public class PieceTableContent implements AbstractDocument.Content {
+
+    /**
+     * Size of the first buffer typed text is appended to, later ones are
+     * larger, up to MAX_ADD_SIZE
+     */
+    static final int MIN_ADD_SIZE = 1024;
+    static final int MAX_ADD_SIZE = 1024 * 1024;
+    /**
+     * The bytes counted for each piece an undoable edit keeps in the tree
+     */
+    static final int PIECE_SIZE = 96;
+    private Piece root;
+    /**
+     * All the pieces in the tree, removed ones too, by the address of their
+     * first char
+     */
+    private final TreeMap<Long, Piece> byAddress = new TreeMap<Long, Piece>();
+    /**
+     * Address of the first char of the next buffer.  Every char ever put in
+     * the content has its own address, the positions are tied to them.
+     */
+    private long nextAddress;
+    private char[] add;
+    private long addAddress;
+    private int addUsed;
+    /**
+     * Incremented by every change, so positions can keep their offset
+     * until the next one
+     */
+    private volatile int version;
+    private final Random priorities = new Random();
+    /**
+     * The undoable edit of the last change, until it is taken
+     */
+    private UndoableEdit lastEdit;
+    private final Position start = new Position() {
+
+        @Override
+        public int getOffset() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "0";
+        }
+    };
+    private final Position end = new Position() {
+
+        @Override
+        public int getOffset() {
+            return length();
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(length());
+        }
+    };
+
+    /**
+     * Create a content with only the newline that ends every document
+     */
+    public PieceTableContent() {
+        try {
+            insertString(0, "\n");
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public int length() {
+        return total(root);
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        int length = length();
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        if (offset == 0) {
+            return start;
+        }
+        if (offset == length) {
+            return end;
+        }
+        Piece p = find(offset);
+        return new Mark(p, p.address + offset - offsetOf(p), offset);
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where > length()) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        int n = str.length();
+        if (n == 0) {
+            return null;
+        }
+        if (add == null || addUsed + n > add.length) {
+            int size = (add == null) ? MIN_ADD_SIZE : Math.min(2 * add.length, MAX_ADD_SIZE);
+            add = new char[Math.max(n, size)];
+            addAddress = nextAddress;
+            addUsed = 0;
+            nextAddress += add.length;
+        }
+        str.getChars(0, n, add, addUsed);
+        long address = addAddress + addUsed;
+        addUsed += n;
+        insert(where, add, address, address - addAddress, n);
+        lastEdit = new InsertUndo(address, n);
+        return lastEdit;
+    }
+
+    /**
+     * Insert length chars of text at where.  The array is used as it is, not
+     * copied, so it must not be changed afterwards.
+     * @return the undoable edit of the insert
+     * @throws BadLocationException
+     */
+    public UndoableEdit insertChars(int where, char[] text, int length) throws BadLocationException {
+        if (where < 0 || where > length()) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        if (length == 0) {
+            return null;
+        }
+        long address = nextAddress;
+        nextAddress += length;
+        insert(where, text, address, 0, length);
+        lastEdit = new InsertUndo(address, length);
+        return lastEdit;
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || where + nitems >= length()) {
+            throw new BadLocationException("Invalid remove", length() + 1);
+        }
+        if (nitems <= 0) {
+            return null;
+        }
+        Piece p = find(where);
+        int skip = where - offsetOf(p);
+        if (skip > 0) {
+            p = split(p, skip);
+        }
+        // hide the pieces, recording the address ranges they cover
+        long[] ranges = new long[4];
+        int count = 0;
+        int left = nitems;
+        while (left > 0) {
+            if (!p.removed) {
+                if (p.length > left) {
+                    split(p, left);
+                }
+                if (count == ranges.length) {
+                    long[] grown = new long[2 * count];
+                    System.arraycopy(ranges, 0, grown, 0, count);
+                    ranges = grown;
+                }
+                ranges[count++] = p.address;
+                ranges[count++] = p.length;
+                left -= p.length;
+                p.removed = true;
+                updatePath(p);
+            }
+            p = successor(p);
+        }
+        version++;
+        lastEdit = new RemoveUndo(ranges, count);
+        return lastEdit;
+    }
+
+    /**
+     * Take the undoable edit of the last insert or remove, which is also
+     * in the event of the change.  It is then up to the caller to undo,
+     * redo and discard it, instead of the event.
+     * @return the edit, or null if it was taken already
+     */
+    UndoableEdit takeEdit() {
+        UndoableEdit edit = lastEdit;
+        lastEdit = null;
+        return edit;
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length()) {
+            throw new BadLocationException("Invalid location", length() + 1);
+        }
+        if (len == 0) {
+            txt.array = new char[0];
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+        Piece p = find(where);
+        int skip = where - offsetOf(p);
+        if (skip + len <= p.length || txt.isPartialReturn()) {
+            txt.array = p.buffer;
+            txt.offset = p.start + skip;
+            txt.count = Math.min(len, p.length - skip);
+            return;
+        }
+        char[] copy = new char[len];
+        int n = 0;
+        while (n < len) {
+            if (!p.removed) {
+                int count = Math.min(len - n, p.length - skip);
+                System.arraycopy(p.buffer, p.start + skip, copy, n, count);
+                n += count;
+                skip = 0;
+            }
+            p = successor(p);
+        }
+        txt.array = copy;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    /**
+     * Put the chars of buffer from start, the first of them at address, into
+     * the text at where.  Text typed at the end of the last text appended to
+     * the same buffer only makes its piece longer.
+     */
+    private void insert(int where, char[] buffer, long address, long start, int length) {
+        version++;
+        // insert after the char before where, so the removed pieces and the
+        // positions at where move with the text, as in GapContent
+        Piece prev = null;
+        if (where > 0) {
+            prev = find(where - 1);
+            int keep = where - offsetOf(prev);
+            if (keep < prev.length) {
+                split(prev, keep);
+            } else if (prev.buffer == buffer && prev.address + prev.length == address) {
+                prev.length += length;
+                updatePath(prev);
+                return;
+            }
+        }
+        Piece p = new Piece(buffer, address, (int) start, length);
+        byAddress.put(address, p);
+        insertAfter(prev, p);
+    }
+
+    /**
+     * Show or hide the chars with the given addresses, for undo and redo
+     */
+    private void setRemoved(long address, int length, boolean removed) {
+        version++;
+        long end = address + length;
+        Piece p = findAddress(address);
+        if (p.address < address) {
+            p = split(p, (int) (address - p.address));
+        }
+        while (p.address < end) {
+            if (p.address + p.length > end) {
+                split(p, (int) (end - p.address));
+            }
+            p.removed = removed;
+            updatePath(p);
+            Map.Entry<Long, Piece> next = byAddress.higherEntry(p.address);
+            if (next == null) {
+                break;
+            }
+            p = next.getValue();
+        }
+    }
+
+    /**
+     * Drop the removed pieces of the chars with the given addresses from
+     * the tree, once no edit can make them visible again
+     */
+    private void reclaim(long address, int length) {
+        long end = address + length;
+        Map.Entry<Long, Piece> first = byAddress.floorEntry(address);
+        if (first == null || first.getValue().address + first.getValue().length <= address) {
+            first = byAddress.higherEntry(address);
+        }
+        Piece p = (first == null) ? null : first.getValue();
+        if (p != null && p.address < address) {
+            p = split(p, (int) (address - p.address));
+        }
+        while (p != null && p.address < end) {
+            if (p.address + p.length > end) {
+                split(p, (int) (end - p.address));
+            }
+            Map.Entry<Long, Piece> next = byAddress.higherEntry(p.address);
+            if (p.removed) {
+                unlink(p);
+            }
+            p = (next == null) ? null : next.getValue();
+        }
+    }
+
+    /**
+     * Take the removed piece p out of the tree.  It is kept only by the
+     * positions tied to its chars, which then follow the piece after it.
+     */
+    private void unlink(Piece p) {
+        p.next = successor(p);
+        while (p.left != null || p.right != null) {
+            if (p.right == null || (p.left != null && p.left.priority > p.right.priority)) {
+                rotateUp(p.left);
+            } else {
+                rotateUp(p.right);
+            }
+        }
+        Piece parent = p.parent;
+        if (parent == null) {
+            root = null;
+        } else if (parent.left == p) {
+            parent.left = null;
+        } else {
+            parent.right = null;
+        }
+        updatePath(parent);
+        p.parent = null;
+        p.buffer = null;
+        byAddress.remove(p.address);
+    }
+
+    /**
+     * Split p after its first length chars
+     * @return the piece with the rest of p
+     */
+    private Piece split(Piece p, int length) {
+        Piece rest = new Piece(p.buffer, p.address + length, p.start + length, p.length - length);
+        rest.removed = p.removed;
+        rest.rest = p.rest;
+        p.rest = rest;
+        p.length = length;
+        updatePath(p);
+        byAddress.put(rest.address, rest);
+        insertAfter(p, rest);
+        return rest;
+    }
+
+    /**
+     * Return the piece holding the char at offset
+     */
+    private Piece find(int offset) {
+        Piece p = root;
+        while (true) {
+            int left = total(p.left);
+            if (offset < left) {
+                p = p.left;
+                continue;
+            }
+            offset -= left;
+            int length = p.visible();
+            if (offset < length) {
+                return p;
+            }
+            offset -= length;
+            p = p.right;
+        }
+    }
+
+    /**
+     * Return the offset of the first char of p in the text
+     */
+    private int offsetOf(Piece p) {
+        int offset = total(p.left);
+        for (; p.parent != null; p = p.parent) {
+            if (p == p.parent.right) {
+                offset += total(p.parent.left) + p.parent.visible();
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Return the piece holding the char with the given address
+     */
+    private Piece findAddress(long address) {
+        return byAddress.floorEntry(address).getValue();
+    }
+
+    private static Piece successor(Piece p) {
+        if (p.right != null) {
+            p = p.right;
+            while (p.left != null) {
+                p = p.left;
+            }
+            return p;
+        }
+        while (p.parent != null && p == p.parent.right) {
+            p = p.parent;
+        }
+        return p.parent;
+    }
+
+    /**
+     * Add p to the tree right after prev, or first if prev is null, and
+     * rotate it up to its place by priority
+     */
+    private void insertAfter(Piece prev, Piece p) {
+        if (root == null) {
+            root = p;
+        } else {
+            Piece parent;
+            if (prev == null) {
+                parent = root;
+                while (parent.left != null) {
+                    parent = parent.left;
+                }
+                parent.left = p;
+            } else if (prev.right == null) {
+                parent = prev;
+                parent.right = p;
+            } else {
+                parent = prev.right;
+                while (parent.left != null) {
+                    parent = parent.left;
+                }
+                parent.left = p;
+            }
+            p.parent = parent;
+        }
+        p.priority = priorities.nextInt();
+        updatePath(p);
+        while (p.parent != null && p.parent.priority < p.priority) {
+            rotateUp(p);
+        }
+    }
+
+    private void rotateUp(Piece p) {
+        Piece parent = p.parent;
+        Piece grand = parent.parent;
+        if (p == parent.left) {
+            parent.left = p.right;
+            if (p.right != null) {
+                p.right.parent = parent;
+            }
+            p.right = parent;
+        } else {
+            parent.right = p.left;
+            if (p.left != null) {
+                p.left.parent = parent;
+            }
+            p.left = parent;
+        }
+        parent.parent = p;
+        p.parent = grand;
+        if (grand == null) {
+            root = p;
+        } else if (grand.left == parent) {
+            grand.left = p;
+        } else {
+            grand.right = p;
+        }
+        parent.update();
+        p.update();
+    }
+
+    private static void updatePath(Piece p) {
+        for (; p != null; p = p.parent) {
+            p.update();
+        }
+    }
+
+    private static int total(Piece p) {
+        return (p == null) ? 0 : p.total;
+    }
+
+    @Override
+    public String toString() {
+        return "PieceTableContent(" + length() + " chars, " + byAddress.size() + " pieces)";
+    }
+
+    /**
+     * A run of chars of one buffer, and a node of the tree
+     */
+    private static final class Piece {
+
+        /**
+         * The chars of the piece, or null once it is out of the tree
+         */
+        char[] buffer;
+        final long address;
+        final int start;
+        int length;
+        boolean removed;
+        /**
+         * The piece with the chars after length when p was split
+         */
+        Piece rest;
+        /**
+         * The piece that was after this one when it was taken out of the
+         * tree, or null while it is in the tree
+         */
+        Piece next;
+        /**
+         * Visible chars of this piece and the pieces under it
+         */
+        int total;
+        int priority;
+        Piece left;
+        Piece right;
+        Piece parent;
+
+        Piece(char[] buffer, long address, int start, int length) {
+            this.buffer = buffer;
+            this.address = address;
+            this.start = start;
+            this.length = length;
+        }
+
+        int visible() {
+            return removed ? 0 : length;
+        }
+
+        void update() {
+            total = total(left) + visible() + total(right);
+        }
+    }
+
+    /**
+     * A Position tied to the char with the given address.  It keeps its
+     * offset until the content is changed.
+     */
+    private final class Mark implements Position {
+
+        private final long address;
+        /**
+         * The piece last seen holding the char, it holds it until it is split
+         */
+        private Piece piece;
+        /**
+         * The version of the content and the offset in it
+         */
+        private volatile long cached;
+
+        Mark(Piece piece, long address, int offset) {
+            this.piece = piece;
+            this.address = address;
+            this.cached = ((long) version << 32) | offset;
+        }
+
+        @Override
+        public int getOffset() {
+            long c = cached;
+            int v = version;
+            if ((int) (c >>> 32) == v) {
+                return (int) c;
+            }
+            Piece p = piece;
+            while (address >= p.address + p.length) {
+                p = p.rest;
+            }
+            piece = p;
+            int offset;
+            if (p.next != null) {
+                // the piece is out of the tree, it was where the one after it is
+                while (p.next != null) {
+                    p = p.next;
+                }
+                offset = offsetOf(p);
+            } else {
+                offset = offsetOf(p) + (p.removed ? 0 : (int) (address - p.address));
+            }
+            cached = ((long) v << 32) | offset;
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    private class InsertUndo extends AbstractUndoableEdit implements CompoundUndoManager.SizedEdit {
+
+        private final long address;
+        private int length;
+
+        InsertUndo(long address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            setRemoved(address, length, true);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            setRemoved(address, length, false);
+        }
+
+        /**
+         * Take the insert of the chars right after the ones of this edit,
+         * typed text for example
+         */
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            if (!(anEdit instanceof InsertUndo) || !canUndo()) {
+                return false;
+            }
+            InsertUndo e = (InsertUndo) anEdit;
+            if (e.getContent() != getContent() || !e.canUndo() || e.address != address + length) {
+                return false;
+            }
+            length += e.length;
+            return true;
+        }
+
+        private PieceTableContent getContent() {
+            return PieceTableContent.this;
+        }
+
+        @Override
+        public void die() {
+            if (canRedo()) {
+                reclaim(address, length);
+            }
+            super.die();
+        }
+
+        @Override
+        public long getSize() {
+            return CompoundUndoManager.EDIT_SIZE + PIECE_SIZE;
+        }
+    }
+
+    private class RemoveUndo extends AbstractUndoableEdit implements CompoundUndoManager.SizedEdit {
+
+        /**
+         * Pairs of (address, length) of the removed chars
+         */
+        private long[] ranges;
+        private int count;
+
+        RemoveUndo(long[] ranges, int count) {
+            this.ranges = ranges;
+            this.count = count;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            for (int i = 0; i < count; i += 2) {
+                setRemoved(ranges[i], (int) ranges[i + 1], false);
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            for (int i = 0; i < count; i += 2) {
+                setRemoved(ranges[i], (int) ranges[i + 1], true);
+            }
+        }
+
+        /**
+         * Take the chars of another remove, made next to the ones of this
+         * edit by a delete or a backspace
+         */
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            if (!(anEdit instanceof RemoveUndo) || !canUndo()) {
+                return false;
+            }
+            RemoveUndo e = (RemoveUndo) anEdit;
+            if (e.getContent() != getContent() || !e.canUndo()) {
+                return false;
+            }
+            for (int i = 0; i < e.count; i += 2) {
+                add(e.ranges[i], e.ranges[i + 1]);
+            }
+            return true;
+        }
+
+        /**
+         * Add a range of chars, joining it to the last one if they are
+         * next to each other in their buffer
+         */
+        private void add(long address, long length) {
+            long last = ranges[count - 2];
+            if (address == last + ranges[count - 1]) {
+                ranges[count - 1] += length;
+                return;
+            }
+            if (address + length == last) {
+                ranges[count - 2] = address;
+                ranges[count - 1] += length;
+                return;
+            }
+            if (count == ranges.length) {
+                long[] grown = new long[2 * count];
+                System.arraycopy(ranges, 0, grown, 0, count);
+                ranges = grown;
+            }
+            ranges[count++] = address;
+            ranges[count++] = length;
+        }
+
+        private PieceTableContent getContent() {
+            return PieceTableContent.this;
+        }
+
+        @Override
+        public void die() {
+            if (canUndo()) {
+                for (int i = 0; i < count; i += 2) {
+                    reclaim(ranges[i], (int) ranges[i + 1]);
+                }
+            }
+            super.die();
+        }
+
+        @Override
+        public long getSize() {
+            return CompoundUndoManager.EDIT_SIZE + 8L * ranges.length + PIECE_SIZE * (count / 2);
+        }
+    }
+}
@@ -13,43 +13,191 @@
  */
 package jsyntaxpane;
 
-import java.io.CharArrayReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.text.Bidi;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
+import javax.swing.text.GapContent;
 import javax.swing.text.PlainDocument;
 import javax.swing.text.Segment;
-import javax.swing.undo.UndoManager;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
+import jsyntaxpane.util.RecoveryJournal;
 
 /**
  * A document that supports being highlighted.  The document maintains an
  * internal List of all the Tokens.  The Tokens are updated using
  * a Lexer, passed to it during construction.
+ *
+ * Lexing is done in the background: edits only record the changed range,
+ * and a shared worker thread re-lexes it and publishes a new immutable
+ * {@link TokenSnapshot}.  Until then, the Token accessors return the tokens
+ * of the last snapshot, moved past the changed text.
+ *
+ * Large texts are lexed a slice at a time, so a new snapshot does not have
+ * to wait for the whole document.  The text asked for by
+ * {@link #getTokens(int, int)}, which is what the views paint, is lexed
+ * first, and the rest after it.
  * 
  * @author Ayman Al-Sairafi
  */
 public class SyntaxDocument extends PlainDocument {
 
     Lexer lexer;
-    List<Token> tokens;
-    UndoManager undo = new CompoundUndoManager();
+    /**
+     * The published tokens together with the change made since they were
+     * lexed.  Only replaced under the write lock (edits) or the read lock
+     * (the lexer), so it is consistent with the text for any reader that
+     * holds the read lock.
+     */
+    private volatile TokenState tokenState = new TokenState(TokenSnapshot.EMPTY);
+    /**
+     * The text whose tokens changed since the token listeners were last
+     * told, see fireTokensChanged()
+     */
+    private final Object damageLock = new Object();
+    private int damageStart = Integer.MAX_VALUE;
+    private int damageEnd = -1;
+    /**
+     * Document version, incremented by every insert and remove
+     */
+    private int version;
+    private final AtomicBoolean lexScheduled = new AtomicBoolean();
+    /**
+     * The end of the text the views have asked tokens for, which is lexed
+     * before the rest of the document
+     */
+    private volatile int wantedEnd;
+    private volatile Highlighting highlighting = Highlighting.FULL;
+    // edit transaction: nesting depth, the text changed so far (in
+    // current offsets, editStart is -1 if none) and the undoable edits
+    private int editDepth;
+    private int editStart;
+    private int editEnd;
+    private CompoundEdit batchEdit;
+    /**
+     * The text being removed, kept for the undoable edit of the remove
+     */
+    private String removedText;
+    /**
+     * The text an undo or redo is about to remove, when it has a copy of it
+     * already
+     */
+    private String replayedText;
+    /**
+     * True while a TextEdit is undone or redone, and its changes are not
+     * undoable edits of their own
+     */
+    private boolean replaying;
+    /**
+     * True if an edit of the current transaction could not be kept, so the
+     * edits before it cannot be undone either
+     */
+    private boolean undoLost;
+    /**
+     * Takes every change of the text, and the steps to undo once the undo
+     * manager has none
+     */
+    private UndoJournal journal;
+    /**
+     * Takes every change of the text, to recover the unsaved ones
+     */
+    private RecoveryJournal recovery;
+    // The fields below belong to the lexer and are guarded by it
+    /**
+     * Scans that looked further than one character past the token they
+     * returned (an unterminated comment for example), stored as pairs of
+     * (scan start, lookahead limit) in document order.  Changes before the
+     * lookahead limit of such a scan must restart lexing at its start.
+     */
+    private int[] farScans = new int[8];
+    private int farScanCount;
+    /**
+     * The lexical state at the start of each line, or more exactly, the state
+     * after the last token that ends at or before the start of the line.
+     * Lexing can resume from any line in its saved state.
+     */
+    private int[] lineStates = new int[16];
+    private int lineStateCount = 1;
+    /**
+     * Where the last call to relex stopped lexing, or TokenSnapshot.COMPLETE
+     */
+    private int relexEnd = TokenSnapshot.COMPLETE;
+    private final Segment hashSegment = new Segment();
+    CompoundUndoManager undo = new CompoundUndoManager();
+    /**
+     * The property AbstractDocument sets when the text needs bidi layout
+     */
+    private static final String I18N_PROPERTY = "i18n";
+    /**
+     * The text a lexer is reset to once it is done with a document
+     */
+    private static final Segment NO_TEXT = new Segment(new char[0], 0, 0);
+    /**
+     * The number of undoable edits kept, unless set with setUndoLimit()
+     */
+    public static final int DEFAULT_UNDO_LIMIT = 100;
+
+    /**
+     * How much of the text is lexed, see {@link #setHighlighting(Highlighting)}
+     */
+    public static enum Highlighting {
+
+        /**
+         * All of the text, the part shown first
+         */
+        FULL,
+        /**
+         * Only the text that was shown, up to its end
+         */
+        DEFERRED,
+        /**
+         * None, the text is shown as plain text
+         */
+        PLAIN
+    }
 
     public SyntaxDocument(Lexer lexer) {
-        super();
+        this(lexer, new GapContent());
+    }
+
+    /**
+     * Create a document that keeps its text in the given content, a
+     * {@link PieceTableContent} for example.
+     * @param lexer
+     * @param content empty content
+     */
+    public SyntaxDocument(Lexer lexer, Content content) {
+        super(content);
         putProperty(PlainDocument.tabSizeAttribute, 4);
         this.lexer = lexer;
+        undo.setLimit(DEFAULT_UNDO_LIMIT);
         // Listen for undo and redo events
         addUndoableEditListener(new UndoableEditListener() {
 
@@ -63,65 +211,1098 @@ public class SyntaxDocument extends PlainDocument {
     }
 
     /**
-     * Parse the entire document and return list of tokens that do not already
-     * exist in the tokens list.  There may be overlaps, and replacements, 
-     * which we will cleanup later.
-     * @return list of tokens that do not exist in the tokens field 
+     * The number of characters lexed at a time when catching up with the
+     * text that is not shown.  Each part takes a few milliseconds, so edits
+     * and the other documents do not have to wait long for the lexer.
+     */
+    static final int LEX_SLICE = 256 * 1024;
+
+    /**
+     * The single thread all documents are lexed on.  Lexers may be shared
+     * by the documents of a kit, so one thread is also the simplest way to
+     * keep them from being used concurrently.
+     */
+    private static final ExecutorService LEXER_THREAD =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SyntaxDocument Lexer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Runnable lexTask = new Runnable() {
+
+        @Override
+        public void run() {
+            lexScheduled.set(false);
+            boolean changed;
+            readLock();
+            try {
+                changed = lexChanges(wantedEnd, highlighting == Highlighting.FULL);
+            } finally {
+                readUnlock();
+            }
+            if (changed) {
+                fireTokensChangedLater();
+            }
+            // then go on with the rest of the text, after any other work
+            if (highlighting == Highlighting.FULL && !tokenState.snapshot.isComplete()) {
+                scheduleLexing();
+            }
+        }
+    };
+
+    /**
+     * Record that the text in [start, oldEnd) has been replaced by the text
+     * now in [start, newEnd), and have it lexed in the background
+     */
+    private void addChange(int start, int oldEnd, int newEnd) {
+        version++;
+        if (editDepth > 0) {
+            if (editStart < 0) {
+                editStart = start;
+                editEnd = newEnd;
+            } else {
+                int end = Math.max(editEnd, oldEnd);
+                editStart = Math.min(editStart, start);
+                editEnd = end + newEnd - oldEnd;
+            }
+        }
+        if (lexer == null || highlighting == Highlighting.PLAIN) {
+            return;
+        }
+        tokenState = tokenState.withChange(start, oldEnd, newEnd);
+        if (editDepth == 0) {
+            scheduleLexing();
+        }
+    }
+
+    private void scheduleLexing() {
+        if (lexScheduled.compareAndSet(false, true)) {
+            LEXER_THREAD.execute(lexTask);
+        }
+    }
+
+    /**
+     * Start an edit transaction.  Until the matching {@link #endEdit()}, the
+     * changes made to the document are not lexed, and their undoable edits
+     * are collected in a single compound edit.  Document events are still
+     * fired, since the views and the caret must follow the text, but
+     * components can check {@link #isEditing()} to skip their work until the
+     * transaction ends.
+     *
+     * Transactions may be nested, only the outermost one counts.  They are
+     * meant to be used on the thread that edits the document, normally the
+     * event dispatch thread.  Prefer {@link #runBatch(Runnable)}, or call
+     * endEdit() in a finally block.
+     */
+    public void beginEdit() {
+        if (editDepth++ == 0) {
+            editStart = -1;
+            editEnd = -1;
+            batchEdit = new CompoundUndoManager.SizedCompoundEdit();
+        }
+    }
+
+    /**
+     * End an edit transaction started with {@link #beginEdit()}.  Ending the
+     * outermost transaction posts its compound undoable edit, fires a single
+     * changedUpdate event covering all the changed text, and lexes the
+     * changes in one pass.
+     */
+    public void endEdit() {
+        if (editDepth == 0) {
+            throw new IllegalStateException("endEdit() without beginEdit()");
+        }
+        if (--editDepth > 0) {
+            return;
+        }
+        CompoundEdit edit = batchEdit;
+        batchEdit = null;
+        edit.end();
+        if (undoLost) {
+            undoLost = false;
+            undo.truncate();
+        } else if (edit.isSignificant()) {
+            super.fireUndoableEditUpdate(new UndoableEditEvent(this, edit));
+        }
+        if (editStart >= 0) {
+            writeLock();
+            try {
+                fireChangedUpdate(new DefaultDocumentEvent(editStart,
+                        editEnd - editStart, DocumentEvent.EventType.CHANGE));
+            } finally {
+                writeUnlock();
+            }
+            if (lexer != null) {
+                scheduleLexing();
+            }
+        }
+    }
+
+    /**
+     * Run the given edits as one transaction.
+     * @see #beginEdit()
+     * @param edits
+     */
+    public void runBatch(Runnable edits) {
+        beginEdit();
+        try {
+            edits.run();
+        } finally {
+            endEdit();
+        }
+    }
+
+    /**
+     * @return true if an edit transaction is in progress
      */
-    private void parse() {
-        // if we have no lexer, then we must have no tokens...
+    public boolean isEditing() {
+        return editDepth > 0;
+    }
+
+    /**
+     * Set how much of the text is lexed.  Large documents can be lexed only
+     * as far as they were shown, or not at all, to save the time and memory
+     * of their tokens.  Going back to PLAIN drops all the tokens, and leaving
+     * it lexes the text again from the start.  Must not be called from a
+     * document listener.
+     * @param highlighting
+     */
+    public void setHighlighting(Highlighting highlighting) {
+        Highlighting old = this.highlighting;
+        if (lexer == null || highlighting == old) {
+            return;
+        }
+        if (highlighting == Highlighting.PLAIN || old == Highlighting.PLAIN) {
+            writeLock();
+            try {
+                this.highlighting = highlighting;
+                synchronized (lexer) {
+                    farScanCount = 0;
+                    lineStateCount = 1;
+                    relexEnd = TokenSnapshot.COMPLETE;
+                }
+                // as if the text was all inserted into an empty document
+                TokenState empty = new TokenState(TokenSnapshot.EMPTY);
+                tokenState = (highlighting == Highlighting.PLAIN) ? empty
+                        : empty.withChange(0, 0, getLength());
+            } finally {
+                writeUnlock();
+            }
+            addTokenDamage(0, Integer.MAX_VALUE);
+            fireTokensChangedLater();
+        } else {
+            this.highlighting = highlighting;
+        }
+        if (highlighting != Highlighting.PLAIN) {
+            scheduleLexing();
+        }
+    }
+
+    /**
+     * @return how much of the text is lexed
+     */
+    public Highlighting getHighlighting() {
+        return highlighting;
+    }
+
+    /**
+     * Bring the tokens up to date with the whole text right away, on the
+     * calling thread.  This is only needed by code that has just changed the
+     * text and needs the exact tokens of the change, since the background
+     * lexer will catch up shortly anyway.
+     * @see #updateTokens(int)
+     */
+    public void updateTokens() {
+        updateTokens(TokenSnapshot.COMPLETE);
+    }
+
+    /**
+     * Bring the tokens of the text up to offset end up to date right away,
+     * on the calling thread.  In a large document that was not fully lexed
+     * yet, this is cheaper than {@link #updateTokens()}.
+     * @param end
+     */
+    public void updateTokens(int end) {
         if (lexer == null) {
-            tokens = null;
             return;
         }
-        List<Token> toks = new ArrayList<Token>(getLength() / 10);
+        boolean changed = false;
+        readLock();
+        try {
+            while (lexChanges(end, false)) {
+                changed = true;
+            }
+        } finally {
+            readUnlock();
+        }
+        if (changed) {
+            fireTokensChangedLater();
+        }
+    }
+
+    /**
+     * Ask for the text up to end to be lexed ahead of the rest of the
+     * document, if it was not lexed yet
+     */
+    private void wantTokens(TokenState state, int end) {
+        if (state.getLexedEnd() < end && wantedEnd < end) {
+            wantedEnd = end;
+            scheduleLexing();
+        }
+    }
+
+    /**
+     * Lex the text changed since the last snapshot, and the text not lexed
+     * yet up to end, and publish a new snapshot.  If fill is true, one more
+     * part of the text not lexed yet is lexed too.  Must be called with the
+     * read lock held.
+     * @return true if a new snapshot was published
+     */
+    private boolean lexChanges(int end, boolean fill) {
+        synchronized (lexer) {
+            TokenState state = tokenState;
+            TokenSnapshot snapshot = state.snapshot;
+            int lexedEnd = snapshot.getLexedEnd();
+            TokenBuffer tokens;
+            if (state.isChanged() && state.start > lexedEnd &&
+                    findFarScan(Integer.MAX_VALUE, state.start) < 0) {
+                // the change is all in text that was not lexed or looked at
+                tokens = snapshot.getBuffer();
+                setLineStateCount(getDefaultRootElement().getElementCount());
+            } else if (state.isChanged()) {
+                // the text from lexedEnd on is lexed again anyway
+                tokens = relex(snapshot.getBuffer(), lexedEnd,
+                        Math.min(state.start, lexedEnd), state.oldEnd, state.newEnd, end);
+                lexedEnd = relexEnd;
+            } else if (snapshot.isComplete() || (!fill && lexedEnd >= end)) {
+                return false;
+            } else {
+                // go on from where the last pass stopped
+                tokens = relex(snapshot.getBuffer(), lexedEnd,
+                        lexedEnd, lexedEnd, lexedEnd, end);
+                lexedEnd = relexEnd;
+            }
+            tokenState = new TokenState(new TokenSnapshot(tokens, version, lexedEnd));
+        }
+        return true;
+    }
+
+    /**
+     * Lex the text now in [start, newEnd), which replaced [start, oldEnd) of
+     * the text the given tokens were lexed from, and return the tokens of the
+     * text as it is now.  The tokens cover the text up to lexedEnd, and
+     * start must not be after it.  Must be called with the read lock and the
+     * lexer held.
+     *
+     * Lexing resumes from the closest line before the change whose restart
+     * point the change could not have affected, in the lexical state saved
+     * for that line.  It stops as soon as the Lexer returns a token past the
+     * change that is identical to an old token moved by the change in length,
+     * and is in the same state the old scan was in after it.  So the lexing
+     * done depends on the size of the change, not on the size of the document.
+     *
+     * Lexing also stops once past end and a slice of text after start,
+     * whichever is further, dropping the old tokens after that point.  The point lexing
+     * stopped at is left in relexEnd.
+     */
+    private TokenBuffer relex(TokenBuffer tokens, int lexedEnd, int start, int oldEnd,
+            int newEnd, int end) {
         long ts = System.nanoTime();
-        int len = getLength();
+        int delta = newEnd - oldEnd;
+        Element root = getDefaultRootElement();
+        int lineCount = root.getElementCount();
+        int lineDelta = lineCount - lineStateCount;
+        // find the line to restart from
+        int line = root.getElementIndex(start);
+        int keep;
+        int from;
+        while (true) {
+            keep = tokens.findEndingAfter(root.getElement(line).getStartOffset());
+            from = (keep == 0) ? 0 : tokens.getEnd(keep - 1);
+            if (from == 0) {
+                break;
+            }
+            // resuming where lexing stopped changes nothing before it
+            int far = (oldEnd == start && newEnd == start) ? -1 : findFarScan(from, start);
+            if (far >= 0) {
+                line = root.getElementIndex(far);
+            } else if (from < start) {
+                break;
+            } else {
+                line--;
+            }
+        }
+        int firstLine = line;
+        boolean complete = (lexedEnd == TokenSnapshot.COMPLETE);
+        int limit = Math.max(end, start + LEX_SLICE);
+        boolean stopped = false;
+        int[] states = new int[16];
+        int stateCount = 0;
+        int nextLineStart = root.getElement(line).getStartOffset();
+        int boundary = from;
+        int boundaryState = (from == 0) ? 0 : lineStates[line];
+        TokenBuffer.Builder relexed = new TokenBuffer.Builder(64);
+        int[] scans = new int[8];
+        int scanCount = 0;
+        int old = keep;
+        int resync = -1;
         try {
-            Segment seg = new Segment();
-            getText(0, getLength(), seg);
-            CharArrayReader reader = new CharArrayReader(seg.array, seg.offset, seg.count);
-            lexer.yyreset(reader);
-            Token token;
-            while ((token = lexer.yylex()) != null) {
-                toks.add(token);
+            // scan the text in place when it is all on one side of the gap,
+            // as after loading a file, otherwise read it as needed
+            Segment text = new Segment();
+            text.setPartialReturn(true);
+            getText(from, getLength() - from, text);
+            if (text.count > 0 && text.count == getLength() - from) {
+                lexer.yyreset(text, from, boundaryState);
+            } else {
+                lexer.yyreset(new DocumentReader(from), from, boundaryState);
+            }
+            Token t;
+            while ((t = lexer.yylex()) != null) {
+                // lines starting before the end of t restart after the previous token
+                while (nextLineStart < t.end()) {
+                    if (stateCount == states.length) {
+                        states = Arrays.copyOf(states, 2 * states.length);
+                    }
+                    states[stateCount++] = boundaryState;
+                    line++;
+                    nextLineStart = (line < lineCount) ? root.getElement(line).getStartOffset() : Integer.MAX_VALUE;
+                }
+                int reach = lexer.yylookahead();
+                if (reach > t.end() + 1) {
+                    if (2 * scanCount == scans.length) {
+                        scans = Arrays.copyOf(scans, 2 * scans.length);
+                    }
+                    scans[2 * scanCount] = boundary;
+                    scans[2 * scanCount + 1] = reach;
+                    scanCount++;
+                }
+                boundary = t.end();
+                boundaryState = lexer.yystate();
+                if (t.start >= newEnd) {
+                    while (old < tokens.size() && tokens.getStart(old) + delta < t.start) {
+                        old++;
+                    }
+                    // the old state after a token is only known if it is the
+                    // last token before a line start
+                    if (old < tokens.size() && isShiftedToken(tokens, old, t, delta) &&
+                            line < lineCount && (old + 1 == tokens.size() ? complete :
+                            nextLineStart < tokens.getEnd(old + 1) + delta) &&
+                            lineStates[line - lineDelta] == boundaryState) {
+                        resync = old;
+                        break;
+                    }
+                }
+                relexed.add(t.type, t.start, t.length, t.pairValue, hash(t));
+                if (boundary >= limit) {
+                    stopped = true;
+                    break;
+                }
             }
-        } catch (BadLocationException ex) {
-            log.log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
-            // This will not be thrown from the Lexer
+            log.log(Level.SEVERE, null, ex);
+        } catch (BadLocationException ex) {
             log.log(Level.SEVERE, null, ex);
         } finally {
-            if (log.isLoggable(Level.FINEST)) {
-                log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
-                        len, (System.nanoTime() - ts) / 1000000, toks.size()));
+            // the lexer may be shared, let go of the text of this document
+            lexer.yyreset(NO_TEXT, 0, 0);
+        }
+        // old scans starting before oldStop were replaced by the new ones
+        int oldStop = (resync < 0) ? Integer.MAX_VALUE : tokens.getEnd(resync);
+        spliceFarScans(from, oldStop, delta, scans, scanCount);
+        if (stopped) {
+            // a line starting right after the last token is lexed too, the
+            // states of the lines after it are not known yet
+            while (nextLineStart <= boundary) {
+                if (stateCount == states.length) {
+                    states = Arrays.copyOf(states, 2 * states.length);
+                }
+                states[stateCount++] = boundaryState;
+                line++;
+                nextLineStart = (line < lineCount) ? root.getElement(line).getStartOffset() : Integer.MAX_VALUE;
+            }
+            spliceLineStates(firstLine, lineStateCount, states, stateCount);
+            setLineStateCount(lineCount);
+            relexEnd = boundary;
+        } else if (resync < 0) {
+            while (line < lineCount) {
+                if (stateCount == states.length) {
+                    states = Arrays.copyOf(states, 2 * states.length);
+                }
+                states[stateCount++] = boundaryState;
+                line++;
+            }
+            spliceLineStates(firstLine, line - lineDelta, states, stateCount);
+            relexEnd = TokenSnapshot.COMPLETE;
+        } else {
+            spliceLineStates(firstLine, line - lineDelta, states, stateCount);
+            relexEnd = complete ? lexedEnd : lexedEnd + delta;
+        }
+        int stop = (resync < 0) ? tokens.size() : resync;
+        int relexedCount = relexed.size();
+        TokenBuffer result = tokens.splice(keep, stop, relexed, delta);
+        // the tokens lexed again before the change are mostly the same
+        int same = 0;
+        while (same < relexedCount && keep + same < stop && tokens.getEnd(keep + same) <= start
+                && isShiftedToken(tokens, keep + same, result.getToken(keep + same), 0)) {
+            same++;
+        }
+        int damageStart = (same < relexedCount) ? result.getStart(keep + same) : start;
+        if (keep + same < stop) {
+            damageStart = Math.min(damageStart, tokens.getStart(keep + same));
+        }
+        // up to the resync point, or over the old tokens dropped after the stop
+        int damageEnd = (resync >= 0) ? tokens.getStart(resync) + delta
+                : Math.max(boundary, (tokens.size() == 0) ? 0 : tokens.getEnd(tokens.size() - 1) + delta);
+        addTokenDamage(Math.min(damageStart, start), Math.max(damageEnd, newEnd));
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(String.format("Lexed from %d in %d ms, replacing %d tokens with %d\n",
+                    from, (System.nanoTime() - ts) / 1000000, stop - keep, relexedCount));
+        }
+        return result;
+    }
+
+    /**
+     * Return the text hash of the token if it goes in the occurrence index,
+     * or 0
+     */
+    private int hash(Token t) {
+        if (!isWord(t.type)) {
+            return 0;
+        }
+        try {
+            getText(t.start, t.length, hashSegment);
+            return hash(hashSegment);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Return true for the types of tokens kept in the occurrence index
+     */
+    private static boolean isWord(TokenType type) {
+        switch (type) {
+            case IDENTIFIER:
+            case KEYWORD:
+            case KEYWORD2:
+            case TYPE:
+            case TYPE2:
+            case TYPE3:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the case insensitive hash of the text in segment, never 0
+     */
+    private static int hash(Segment segment) {
+        int h = 0;
+        for (int i = segment.offset, end = segment.offset + segment.count; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(segment.array[i]);
+        }
+        return (h == 0) ? 1 : h;
+    }
+
+    private static boolean isShiftedToken(TokenBuffer tokens, int index, Token t, int delta) {
+        return tokens.getStart(index) + delta == t.start && tokens.getLength(index) == t.length &&
+                tokens.getType(index) == t.type && tokens.getPairValue(index) == t.pairValue;
+    }
+
+    /**
+     * Return the start of the first far scan that starts before pos and
+     * looked past offset, or -1 if there is none
+     */
+    private int findFarScan(int pos, int offset) {
+        for (int i = 0; i < farScanCount && farScans[2 * i] < pos; i++) {
+            if (farScans[2 * i + 1] > offset) {
+                return farScans[2 * i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replace the far scans starting in [from, oldStop) with the given ones,
+     * and move the scans after them by delta
+     */
+    private void spliceFarScans(int from, int oldStop, int delta, int[] scans, int count) {
+        int head = 0;
+        while (head < farScanCount && farScans[2 * head] < from) {
+            head++;
+        }
+        int tail = head;
+        while (tail < farScanCount && farScans[2 * tail] < oldStop) {
+            tail++;
+        }
+        int size = head + count + farScanCount - tail;
+        int[] result = new int[Math.max(8, 2 * size)];
+        System.arraycopy(farScans, 0, result, 0, 2 * head);
+        System.arraycopy(scans, 0, result, 2 * head, 2 * count);
+        for (int i = tail, j = head + count; i < farScanCount; i++, j++) {
+            result[2 * j] = farScans[2 * i] + delta;
+            result[2 * j + 1] = farScans[2 * i + 1] + delta;
+        }
+        farScans = result;
+        farScanCount = size;
+    }
+
+    /**
+     * Set the number of lines with a saved state, for when the lines at the
+     * end are not lexed yet
+     */
+    private void setLineStateCount(int count) {
+        if (count > lineStates.length) {
+            lineStates = Arrays.copyOf(lineStates, Math.max(count, lineStates.length * 3 / 2));
+        }
+        lineStateCount = count;
+    }
+
+    /**
+     * Replace the saved states of the old lines in [firstLine, oldLine) with
+     * the given states
+     */
+    private void spliceLineStates(int firstLine, int oldLine, int[] states, int count) {
+        int size = firstLine + count + lineStateCount - oldLine;
+        if (size > lineStates.length) {
+            lineStates = Arrays.copyOf(lineStates, Math.max(size, lineStates.length * 3 / 2));
+        }
+        System.arraycopy(lineStates, oldLine, lineStates, firstLine + count, lineStateCount - oldLine);
+        System.arraycopy(states, 0, lineStates, firstLine, count);
+        lineStateCount = size;
+    }
+
+    /**
+     * The edits of inserts and removes are posted as {@link TextEdit}s,
+     * which keep far less than the DefaultDocumentEvent of each change.  On
+     * a PieceTableContent the TextEdit takes the edit of the content, which
+     * only records the pieces changed, and the event is left to the garbage
+     * collector.  On other contents the event dies.
+     */
+    @Override
+    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+        UndoableEdit edit = e.getEdit();
+        if (replaying) {
+            removedText = null;
+            edit.die();
+            return;
+        }
+        if (edit instanceof DefaultDocumentEvent) {
+            DefaultDocumentEvent change = (DefaultDocumentEvent) edit;
+            UndoableEdit pieces = (getContent() instanceof PieceTableContent)
+                    ? ((PieceTableContent) getContent()).takeEdit() : null;
+            if (change.getType() == DocumentEvent.EventType.INSERT) {
+                if (pieces == null) {
+                    change.die();
+                }
+                edit = new TextEdit(true, change.getOffset(), change.getLength(), null, pieces);
+            } else if (change.getType() == DocumentEvent.EventType.REMOVE && pieces != null) {
+                removedText = null;
+                edit = new TextEdit(false, change.getOffset(), change.getLength(), null, pieces);
+            } else if (change.getType() == DocumentEvent.EventType.REMOVE) {
+                change.die();
+                if (removedText == null || 2L * change.getLength() > undo.getByteLimit()) {
+                    // too much text was removed to undo it
+                    removedText = null;
+                    if (editDepth > 0) {
+                        undoLost = true;
+                    } else {
+                        undo.truncate();
+                    }
+                    return;
+                }
+                edit = new TextEdit(false, change.getOffset(), change.getLength(), removedText, null);
+                removedText = null;
             }
-            tokens = toks;
+            e = new UndoableEditEvent(this, edit);
+        }
+        if (editDepth > 0) {
+            batchEdit.addEdit(edit);
+        } else {
+            super.fireUndoableEditUpdate(e);
         }
     }
 
+    /**
+     * The text inserted is copied once for both journals
+     */
     @Override
-    protected void fireChangedUpdate(DocumentEvent e) {
-        parse();
-        super.fireChangedUpdate(e);
+    protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+        if (journal != null || recovery != null) {
+            try {
+                String text = getText(chng.getOffset(), chng.getLength());
+                if (journal != null) {
+                    journal.inserted(chng.getOffset(), text);
+                }
+                if (recovery != null) {
+                    recovery.inserted(chng.getOffset(), text);
+                }
+            } catch (BadLocationException ex) {
+                log.log(Level.SEVERE, null, ex);
+            }
+        }
+        super.insertUpdate(chng, attr);
+    }
+
+    /**
+     * The text removed is copied once for the undoable edit and the undo
+     * journal, and not at all if the undo history could not hold it: the
+     * journal then gets a break, as the undo history is cut.  An undo or
+     * redo gives the copy it has.  On a PieceTableContent the undoable edit
+     * needs no copy and the undo history is not cut, so only the journal
+     * gets one, whatever its size.
+     */
+    @Override
+    protected void removeUpdate(DefaultDocumentEvent chng) {
+        removedText = replayedText;
+        replayedText = null;
+        boolean pieces = getContent() instanceof PieceTableContent;
+        boolean copy = journal != null || (!replaying && !pieces);
+        if (removedText == null && copy &&
+                (pieces || 2L * chng.getLength() <= undo.getByteLimit())) {
+            try {
+                removedText = getText(chng.getOffset(), chng.getLength());
+            } catch (BadLocationException ex) {
+                log.log(Level.SEVERE, null, ex);
+            }
+        }
+        if (journal != null) {
+            if (removedText != null) {
+                journal.removed(chng.getOffset(), removedText);
+            } else {
+                journal.lost();
+            }
+        }
+        if (recovery != null) {
+            recovery.removed(chng.getOffset(), chng.getLength());
+        }
+        super.removeUpdate(chng);
+    }
+
+    /**
+     * The undoable edit of an insert or a remove, undone and redone by
+     * editing the document again.  It keeps the text it removed, or the text
+     * it inserted while it is undone, and no more.  On a PieceTableContent
+     * it keeps the edit of the content instead, which shows or hides the
+     * pieces of the text without copying it.  A char typed or deleted next
+     * to the text of the edit is added to it.
+     */
+    class TextEdit extends AbstractUndoableEdit implements CompoundUndoManager.SizedEdit {
+
+        private final boolean insert;
+        private int offset;
+        private int length;
+        private StringBuilder text;
+        private UndoableEdit pieces;
+
+        TextEdit(boolean insert, int offset, int length, String text, UndoableEdit pieces) {
+            this.insert = insert;
+            this.offset = offset;
+            this.length = length;
+            this.text = (text == null) ? null : new StringBuilder(text);
+            this.pieces = pieces;
+        }
+
+        @Override
+        public boolean addEdit(UndoableEdit anEdit) {
+            if (!(anEdit instanceof TextEdit) || !canUndo()) {
+                return false;
+            }
+            TextEdit e = (TextEdit) anEdit;
+            if (e.getDocument() != getDocument() || e.insert != insert || e.length != 1 ||
+                    (pieces == null) != (e.pieces == null)) {
+                return false;
+            }
+            int at;
+            if (insert && e.offset == offset + length) {
+                at = length;
+            } else if (!insert && e.offset == offset) {
+                // delete
+                at = length;
+            } else if (!insert && e.offset + 1 == offset) {
+                // backspace
+                at = 0;
+            } else {
+                return false;
+            }
+            if (pieces != null) {
+                if (!pieces.addEdit(e.pieces)) {
+                    return false;
+                }
+                e.pieces = null;
+            } else if (!insert) {
+                text.insert(at, e.text);
+            }
+            if (at == 0) {
+                offset--;
+            }
+            length++;
+            e.die();
+            return true;
+        }
+
+        private SyntaxDocument getDocument() {
+            return SyntaxDocument.this;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            if (pieces != null) {
+                replayPieces(true, !insert);
+                return;
+            }
+            replaying = true;
+            try {
+                if (insert) {
+                    replayedText = getText(offset, length);
+                    text = new StringBuilder(replayedText);
+                    remove(offset, length);
+                } else {
+                    insertString(offset, text.toString(), null);
+                }
+            } catch (BadLocationException ex) {
+                log.log(Level.SEVERE, null, ex);
+                throw new CannotUndoException();
+            } finally {
+                replaying = false;
+                replayedText = null;
+            }
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            if (pieces != null) {
+                replayPieces(false, insert);
+                return;
+            }
+            replaying = true;
+            try {
+                if (insert) {
+                    insertString(offset, text.toString(), null);
+                    text = null;
+                } else {
+                    remove(offset, length);
+                }
+            } catch (BadLocationException ex) {
+                log.log(Level.SEVERE, null, ex);
+                throw new CannotRedoException();
+            } finally {
+                replaying = false;
+            }
+        }
+
+        /**
+         * Undo or redo the edit of the content, with the same steps and
+         * events as an insert or a remove of the text
+         */
+        private void replayPieces(boolean undo, boolean shows) {
+            writeLock();
+            replaying = true;
+            try {
+                DefaultDocumentEvent e = new DefaultDocumentEvent(offset, length,
+                        shows ? DocumentEvent.EventType.INSERT : DocumentEvent.EventType.REMOVE);
+                if (!shows) {
+                    removeUpdate(e);
+                    removedText = null;
+                }
+                if (undo) {
+                    pieces.undo();
+                } else {
+                    pieces.redo();
+                }
+                if (shows) {
+                    insertUpdate(e, null);
+                    e.end();
+                    fireInsertUpdate(e);
+                } else {
+                    postRemoveUpdate(e);
+                    e.end();
+                    fireRemoveUpdate(e);
+                }
+            } finally {
+                replaying = false;
+                writeUnlock();
+            }
+        }
+
+        @Override
+        public void die() {
+            super.die();
+            text = null;
+            if (pieces != null) {
+                // dropping the pieces changes the tree the lexer reads
+                writeLock();
+                try {
+                    pieces.die();
+                } finally {
+                    writeUnlock();
+                }
+                pieces = null;
+            }
+        }
+
+        @Override
+        public String getPresentationName() {
+            return UIManager.getString(insert ? "AbstractDocument.additionText"
+                    : "AbstractDocument.deletionText");
+        }
+
+        @Override
+        public long getSize() {
+            if (pieces != null) {
+                return CompoundUndoManager.EDIT_SIZE + CompoundUndoManager.sizeOf(pieces);
+            }
+            return CompoundUndoManager.EDIT_SIZE + ((text == null) ? 0 : 2L * text.length());
+        }
     }
 
     @Override
     protected void fireInsertUpdate(DocumentEvent e) {
-        parse();
+        addChange(e.getOffset(), e.getOffset(), e.getOffset() + e.getLength());
         super.fireInsertUpdate(e);
     }
 
     @Override
     protected void fireRemoveUpdate(DocumentEvent e) {
-        parse();
+        addChange(e.getOffset(), e.getOffset() + e.getLength(), e.getOffset());
         super.fireRemoveUpdate(e);
     }
 
-    @Override
-    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
-        parse();
-        super.fireUndoableEditUpdate(e);
+    /**
+     * Adds a listener to be notified, on the event dispatch thread, whenever
+     * a new token snapshot has been published
+     * @param listener
+     */
+    public void addTokenChangeListener(ChangeListener listener) {
+        listenerList.add(ChangeListener.class, listener);
+    }
+
+    public void removeTokenChangeListener(ChangeListener listener) {
+        listenerList.remove(ChangeListener.class, listener);
+    }
+
+    /**
+     * Add the text from start to end to the text whose tokens changed since
+     * the listeners were last told
+     */
+    private void addTokenDamage(int start, int end) {
+        synchronized (damageLock) {
+            damageStart = Math.min(damageStart, start);
+            damageEnd = Math.max(damageEnd, end);
+        }
+    }
+
+    private void fireTokensChangedLater() {
+        SwingUtilities.invokeLater(new Runnable() {
+
+            @Override
+            public void run() {
+                fireTokensChanged();
+            }
+        });
+    }
+
+    /**
+     * Tell the listeners of the tokens that changed since they were last
+     * told, with a {@link TokenChangeEvent}.  Its range may be empty when an
+     * earlier event already had it.
+     */
+    protected void fireTokensChanged() {
+        int start;
+        int end;
+        synchronized (damageLock) {
+            start = Math.min(damageStart, getLength());
+            end = Math.min(damageEnd, getLength());
+            damageStart = Integer.MAX_VALUE;
+            damageEnd = -1;
+        }
+        if (end < start) {
+            end = start;
+        }
+        Object[] listeners = listenerList.getListenerList();
+        ChangeEvent event = null;
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == ChangeListener.class) {
+                if (event == null) {
+                    event = new TokenChangeEvent(this, start, end);
+                }
+                ((ChangeListener) listeners[i + 1]).stateChanged(event);
+            }
+        }
+    }
+
+    /**
+     * Return the last published token snapshot.  Its offsets are those of
+     * the text version it was lexed from, which may be older than the
+     * current text.
+     * @return last token snapshot
+     */
+    public TokenSnapshot getTokenSnapshot() {
+        return tokenState.snapshot;
+    }
+
+    /**
+     * The published tokens, and the change made to the text since they were
+     * lexed as a single replaced range.  The Token accessors use it to move
+     * the tokens of the snapshot to where their text is now.
+     */
+    private static final class TokenState {
+
+        final TokenSnapshot snapshot;
+        final TokenBuffer buffer;
+        // [start, oldEnd) of the snapshot text is now [start, newEnd),
+        // start is -1 if the text has not changed
+        final int start;
+        final int oldEnd;
+        final int newEnd;
+
+        TokenState(TokenSnapshot snapshot) {
+            this(snapshot, -1, -1, -1);
+        }
+
+        TokenState(TokenSnapshot snapshot, int start, int oldEnd, int newEnd) {
+            this.snapshot = snapshot;
+            this.buffer = snapshot.getBuffer();
+            this.start = start;
+            this.oldEnd = oldEnd;
+            this.newEnd = newEnd;
+        }
+
+        boolean isChanged() {
+            return start >= 0;
+        }
+
+        /**
+         * Return the state after replacing [s, oe) of the current text with
+         * the text now in [s, ne)
+         */
+        TokenState withChange(int s, int oe, int ne) {
+            if (!isChanged()) {
+                return new TokenState(snapshot, s, oe, ne);
+            }
+            int end = Math.max(newEnd, oe);
+            return new TokenState(snapshot, Math.min(start, s),
+                    oldEnd + end - newEnd, end + ne - oe);
+        }
+
+        /**
+         * Return where the snapshot offset pos is now.  Text inserted at pos
+         * goes after it, so a token ending at an insertion grows to cover it
+         */
+        int map(int pos) {
+            if (pos < start || start < 0) {
+                return pos;
+            } else if (pos >= oldEnd) {
+                return pos + newEnd - oldEnd;
+            } else {
+                return start;
+            }
+        }
+
+        /**
+         * Return where the lexed text now ends, see TokenSnapshot.getLexedEnd()
+         */
+        int getLexedEnd() {
+            int lexedEnd = snapshot.getLexedEnd();
+            return (lexedEnd == TokenSnapshot.COMPLETE) ? lexedEnd : map(lexedEnd);
+        }
+
+        int size() {
+            return buffer.size();
+        }
+
+        int getStart(int index) {
+            return map(buffer.getStart(index));
+        }
+
+        int getEnd(int index) {
+            return map(buffer.getEnd(index));
+        }
+
+        /**
+         * Return the token at index, moved to where its text is now.  Tokens
+         * whose text was removed are returned with a zero length.
+         */
+        Token get(int index) {
+            int s = getStart(index);
+            return new Token(buffer.getType(index), s, getEnd(index) - s,
+                    buffer.getPairValue(index));
+        }
+
+        boolean isRemoved(int index) {
+            return getStart(index) == getEnd(index);
+        }
+
+        /**
+         * Return the index of the first token that now ends after pos
+         */
+        int indexAfter(int pos) {
+            if (!isChanged()) {
+                return buffer.findEndingAfter(pos);
+            }
+            int lo = 0;
+            int hi = size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (getEnd(mid) <= pos) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    /**
+     * Insert length chars of text at offset, like insertString().  If the
+     * document is on a {@link PieceTableContent}, the array becomes part of
+     * its text instead of being copied, so a loaded file is inserted without
+     * copying it: the array must not be changed afterwards.
+     * @param offset
+     * @param text
+     * @param length
+     * @throws BadLocationException
+     */
+    public void insertText(int offset, char[] text, int length) throws BadLocationException {
+        if (!(getContent() instanceof PieceTableContent) || getDocumentFilter() != null) {
+            insertString(offset, new String(text, 0, length), null);
+            return;
+        }
+        if (length == 0) {
+            return;
+        }
+        writeLock();
+        try {
+            if (offset < 0 || offset > getLength()) {
+                throw new BadLocationException("Invalid insert", offset);
+            }
+            // the same steps as insertString()
+            UndoableEdit u = ((PieceTableContent) getContent()).insertChars(offset, text, length);
+            DefaultDocumentEvent e = new DefaultDocumentEvent(offset, length,
+                    DocumentEvent.EventType.INSERT);
+            e.addEdit(u);
+            if (!Boolean.TRUE.equals(getProperty(I18N_PROPERTY)) &&
+                    Bidi.requiresBidi(text, 0, length)) {
+                putProperty(I18N_PROPERTY, Boolean.TRUE);
+            }
+            insertUpdate(e, null);
+            e.end();
+            fireInsertUpdate(e);
+            fireUndoableEditUpdate(new UndoableEditEvent(this, e));
+        } finally {
+            writeUnlock();
+        }
     }
 
     /**
@@ -137,48 +1318,71 @@ public class SyntaxDocument extends PlainDocument {
         }
     }
 
+    /**
+     * A Reader over the text of this document from a given position to its
+     * end.  The text is fetched as the Lexer asks for it, so lexing a small
+     * part of a large document does not copy all of it.
+     */
+    private class DocumentReader extends Reader {
+
+        private final Segment segment = new Segment();
+        private int pos;
+
+        private DocumentReader(int pos) {
+            this.pos = pos;
+            segment.setPartialReturn(true);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int count = Math.min(len, getLength() - pos);
+            if (count <= 0) {
+                return (len == 0) ? 0 : -1;
+            }
+            try {
+                getText(pos, count, segment);
+            } catch (BadLocationException ex) {
+                throw new IOException("Unable to read document at " + ex.offsetRequested());
+            }
+            System.arraycopy(segment.array, segment.offset, cbuf, off, segment.count);
+            pos += segment.count;
+            return segment.count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     /**
      * This class is used to iterate over tokens between two positions
      * 
      */
     class TokenIterator implements ListIterator<Token> {
 
+        final TokenState state;
         int start;
         int end;
         int ndx = 0;
 
-        @SuppressWarnings("unchecked")
         private TokenIterator(int start, int end) {
+            this.state = tokenState;
             this.start = start;
             this.end = end;
-            if (tokens != null && !tokens.isEmpty()) {
-                Token token = new Token(TokenType.COMMENT, start, end - start);
-                ndx = Collections.binarySearch((List) tokens, token);
-                // we will probably not find the exact token...
-                if (ndx < 0) {
-                    // so, start from one before the token where we should be...
-                    // -1 to get the location, and another -1 to go back..
-                    ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-                    Token t = tokens.get(ndx);
-                    // if the prev token does not overlap, then advance one
-                    if (t.end() <= start) {
-                        ndx++;
-                    }
-
-                }
-            }
+            // start from the first token that overlaps start
+            ndx = state.indexAfter(start);
         }
 
         @Override
         public boolean hasNext() {
-            if (tokens == null) {
-                return false;
+            // skip the tokens whose text was removed since they were lexed
+            while (ndx < state.size() && state.isRemoved(ndx)) {
+                ndx++;
             }
-            if (ndx >= tokens.size()) {
+            if (ndx >= state.size()) {
                 return false;
             }
-            Token t = tokens.get(ndx);
-            if (t.start >= end) {
+            if (state.getStart(ndx) >= end) {
                 return false;
             }
             return true;
@@ -186,7 +1390,7 @@ public class SyntaxDocument extends PlainDocument {
 
         @Override
         public Token next() {
-            return tokens.get(ndx++);
+            return state.get(ndx++);
         }
 
         @Override
@@ -195,14 +1399,10 @@ public class SyntaxDocument extends PlainDocument {
         }
 
         public boolean hasPrevious() {
-            if (tokens == null) {
-                return false;
-            }
-            if (ndx <= 0) {
+            if (ndx <= 0 || ndx >= state.size()) {
                 return false;
             }
-            Token t = tokens.get(ndx);
-            if (t.end() <= start) {
+            if (state.getEnd(ndx) <= start) {
                 return false;
             }
             return true;
@@ -210,7 +1410,7 @@ public class SyntaxDocument extends PlainDocument {
 
         @Override
         public Token previous() {
-            return tokens.get(ndx--);
+            return state.get(ndx--);
         }
 
         @Override
@@ -241,7 +1441,9 @@ public class SyntaxDocument extends PlainDocument {
      * @return Iterator for tokens that overal with range from start to end
      */
     public Iterator<Token> getTokens(int start, int end) {
-        return new TokenIterator(start, end);
+        TokenIterator iterator = new TokenIterator(start, end);
+        wantTokens(iterator.state, end);
+        return iterator;
     }
 
     /**
@@ -251,25 +1453,31 @@ public class SyntaxDocument extends PlainDocument {
      * @return
      */
     public Token getTokenAt(int pos) {
-        if (tokens == null || tokens.isEmpty() || pos > getLength()) {
+        TokenState state = tokenState;
+        wantTokens(state, pos + 1);
+        if (state.size() == 0 || pos > getLength()) {
             return null;
         }
-        Token tok = null;
-        Token tKey = new Token(TokenType.DEFAULT, pos, 1);
-        @SuppressWarnings("unchecked")
-        int ndx = Collections.binarySearch((List) tokens, tKey);
-        if (ndx < 0) {
-            // so, start from one before the token where we should be...
-            // -1 to get the location, and another -1 to go back..
-            ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-            Token t = tokens.get(ndx);
-            if ((t.start <= pos) && (pos <= t.end())) {
-                tok = t;
+        // the last token starting before pos, or a single char token at pos
+        int lo = 0;
+        int hi = state.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = state.getStart(mid);
+            if (start < pos || (start == pos && state.getEnd(mid) <= pos + 1)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-        } else {
-            tok = tokens.get(ndx);
         }
-        return tok;
+        int ndx = (lo == 0) ? 0 : lo - 1;
+        while (ndx > 0 && state.isRemoved(ndx)) {
+            ndx--;
+        }
+        if ((state.getStart(ndx) <= pos) && (pos <= state.getEnd(ndx)) && !state.isRemoved(ndx)) {
+            return state.get(ndx);
+        }
+        return null;
     }
 
     /**
@@ -278,6 +1486,8 @@ public class SyntaxDocument extends PlainDocument {
      * have the negative of t.pairValue.
      * This method properly handles nestings of same pairValues, but overlaps
      * are not checked.
+     * The partner is looked up in the pair index of the tokens, see
+     * {@link TokenBuffer#findPartner(int)}.
      * if The document does not contain a paired
      * @param t
      * @return the other pair's token, or null if nothing is found.
@@ -286,8 +1496,22 @@ public class SyntaxDocument extends PlainDocument {
         if (t == null || t.pairValue == 0) {
             return null;
         }
+        TokenState state = tokenState;
+        int ndx = state.indexAfter(t.start);
+        if (ndx >= state.size() || state.getStart(ndx) != t.start ||
+                state.getEnd(ndx) != t.end() || state.buffer.getType(ndx) != t.type) {
+            return null;
+        }
+        int partner = state.snapshot.getPartner(ndx);
+        if (partner >= 0 && !state.isRemoved(partner)) {
+            return state.get(partner);
+        }
+        if (!state.isChanged()) {
+            return null;
+        }
+        // the partner was removed since the snapshot was lexed, look for
+        // the next one the slow way
         Token p = null;
-        int ndx = tokens.indexOf(t);
         // w will be similar to a stack. The openners weght is added to it
         // and the closers are subtracted from it (closers are already negative)
         int w = t.pairValue;
@@ -296,14 +1520,14 @@ public class SyntaxDocument extends PlainDocument {
         int v = Math.abs(t.pairValue);
         while (!done) {
             ndx += direction;
-            if (ndx < 0 || ndx >= tokens.size()) {
+            if (ndx < 0 || ndx >= state.size()) {
                 break;
             }
-            Token current = tokens.get(ndx);
-            if (Math.abs(current.pairValue) == v) {
-                w += current.pairValue;
+            byte pairValue = state.buffer.getPairValue(ndx);
+            if (Math.abs(pairValue) == v && !state.isRemoved(ndx)) {
+                w += pairValue;
                 if (w == 0) {
-                    p = current;
+                    p = state.get(ndx);
                     done = true;
                 }
             }
@@ -312,13 +1536,94 @@ public class SyntaxDocument extends PlainDocument {
         return p;
     }
 
+    /**
+     * Return all the tokens with the same text as t, ignoring case, in
+     * document order.  t itself is included.  For identifiers, keywords and
+     * types this is a lookup in the occurrence index kept with the tokens,
+     * for other tokens the whole document is searched.
+     * Should be called with the read lock held.
+     * @param t
+     * @return list of matching tokens, empty if t is null
+     */
+    public List<Token> getOccurrences(Token t) {
+        List<Token> result = new ArrayList<Token>();
+        if (t == null) {
+            return result;
+        }
+        try {
+            Segment text = new Segment();
+            Segment other = new Segment();
+            getText(t.start, t.length, text);
+            TokenState state = tokenState;
+            if (isWord(t.type)) {
+                int hash = hash(text);
+                int[] found = state.buffer.findHash(hash);
+                if (state.isChanged()) {
+                    // the tokens a pending change ran into are indexed by
+                    // their old text, so check them all
+                    TokenBuffer buffer = state.buffer;
+                    int count = found.length;
+                    for (int i = buffer.findEndingAfter(state.start - 1);
+                            i < buffer.size() && buffer.getStart(i) <= state.oldEnd; i++) {
+                        if (buffer.getHash(i) != hash) {
+                            if (count == found.length) {
+                                found = Arrays.copyOf(found, 2 * count + 4);
+                            }
+                            found[count++] = i;
+                        }
+                    }
+                    found = Arrays.copyOf(found, count);
+                    Arrays.sort(found);
+                }
+                for (int i : found) {
+                    addOccurrence(state, i, text, other, result);
+                }
+            } else {
+                for (int i = 0; i < state.size(); i++) {
+                    addOccurrence(state, i, text, other, result);
+                }
+            }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        return result;
+    }
+
+    /**
+     * Add the token at index to list if its text now matches text
+     */
+    private void addOccurrence(TokenState state, int index, Segment text,
+            Segment other, List<Token> list) throws BadLocationException {
+        int start = state.getStart(index);
+        if (state.getEnd(index) - start != text.count) {
+            return;
+        }
+        getText(start, text.count, other);
+        for (int i = 0; i < text.count; i++) {
+            char c1 = text.array[text.offset + i];
+            char c2 = other.array[other.offset + i];
+            if (c1 != c2 && Character.toLowerCase(c1) != Character.toLowerCase(c2)) {
+                return;
+            }
+        }
+        list.add(state.get(index));
+    }
+
     /**
      * Perform an undo action, if possible
      */
     public void doUndo() {
         if (undo.canUndo()) {
-            undo.undo();
-            parse();
+            endJournalStep();
+            beginEdit();
+            try {
+                undo.undo();
+            } finally {
+                endEdit();
+                endJournalStep();
+            }
+        } else if (canUndoJournal()) {
+            replayJournal(true);
         }
     }
 
@@ -327,17 +1632,122 @@ public class SyntaxDocument extends PlainDocument {
      */
     public void doRedo() {
         if (undo.canRedo()) {
-            undo.redo();
-            parse();
+            endJournalStep();
+            beginEdit();
+            try {
+                undo.redo();
+            } finally {
+                endEdit();
+                endJournalStep();
+            }
+        } else if (canRedoJournal()) {
+            replayJournal(false);
         }
     }
 
      public boolean canUndo(){
-        return undo.canUndo();
+        return undo.canUndo() || canUndoJournal();
     }
 
     public boolean canRedo(){
-        return undo.canRedo();
+        return undo.canRedo() || canRedoJournal();
+    }
+
+    /**
+     * The journal steps follow on from the edits of the undo manager, if it
+     * kept all of them
+     */
+    private boolean canUndoJournal() {
+        return journal != null && !undo.isTruncated() && journal.canUndo();
+    }
+
+    /**
+     * A journal step can be redone only if the text is as the last one
+     * undone left it
+     */
+    private boolean canRedoJournal() {
+        return journal != null && !undo.canUndo() && !undo.canRedo()
+                && !undo.isTruncated() && journal.canRedo();
+    }
+
+    private void endJournalStep() {
+        if (journal != null) {
+            journal.endStep();
+        }
+    }
+
+    /**
+     * Undo or redo the next step of the journal.  The undo manager is
+     * cleared, its edits start from the text the step leaves.
+     */
+    private void replayJournal(boolean undoing) {
+        List<UndoJournal.Change> changes;
+        try {
+            changes = undoing ? journal.undo() : journal.redo();
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+            journal.discard();
+            return;
+        }
+        if (undoing) {
+            Collections.reverse(changes);
+        }
+        journal.endStep();
+        beginEdit();
+        replaying = true;
+        try {
+            for (UndoJournal.Change c : changes) {
+                if (c.insert == undoing) {
+                    // the text removed must be the text of the change
+                    if (!getText(c.offset, c.text.length()).equals(c.text)) {
+                        throw new BadLocationException("Journal does not match the text", c.offset);
+                    }
+                    replayedText = c.text;
+                    remove(c.offset, c.text.length());
+                } else {
+                    insertString(c.offset, c.text, null);
+                }
+            }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            journal.discard();
+        } finally {
+            replaying = false;
+            replayedText = null;
+            endEdit();
+            journal.endStep();
+        }
+        undo.discardAllEdits();
+    }
+
+    /**
+     * Set the journal that keeps the undo history of the file of the
+     * document on the disk, or null.  It must have been opened with the text
+     * of the document, and the undo manager cleared.  Once the edits of the
+     * undo manager are all undone, doUndo() goes on with the steps of the
+     * journal.
+     * @param journal
+     */
+    public void setUndoJournal(UndoJournal journal) {
+        this.journal = journal;
+    }
+
+    public UndoJournal getUndoJournal() {
+        return journal;
+    }
+
+    /**
+     * Set the journal that keeps the unsaved changes of the document on the
+     * disk, or null.  It must have been started with the text of the
+     * document.
+     * @param recovery
+     */
+    public void setRecoveryJournal(RecoveryJournal recovery) {
+        this.recovery = recovery;
+    }
+
+    public RecoveryJournal getRecoveryJournal() {
+        return recovery;
     }
 
     /**
@@ -434,11 +1844,54 @@ public class SyntaxDocument extends PlainDocument {
         return matcher;
     }
 
+    /**
+     * Set the maximum number of undoable edits kept.  The oldest edits are
+     * discarded if there are more.
+     * @param limit
+     */
+    public void setUndoLimit(int limit) {
+        undo.setLimit(limit);
+    }
+
+    /**
+     * @return the maximum number of undoable edits kept
+     */
+    public int getUndoLimit() {
+        return undo.getLimit();
+    }
+
+    /**
+     * @return the number of undoable edits kept now
+     */
+    public int getUndoEditCount() {
+        return undo.getEditCount();
+    }
+
+    /**
+     * Set the number of bytes the undoable edits kept may use.  The oldest
+     * edits are discarded if they use more, and a remove of more text than
+     * that cannot be undone.
+     * @param byteLimit
+     */
+    public void setUndoByteLimit(long byteLimit) {
+        undo.setByteLimit(byteLimit);
+    }
+
+    /**
+     * @return the number of bytes the undoable edits kept may use
+     */
+    public long getUndoByteLimit() {
+        return undo.getByteLimit();
+    }
+
     /**
      * This will discard all undoable edits
      */
     public void clearUndos() {
         undo.discardAllEdits();
+        if (journal != null) {
+            journal.discard();
+        }
     }
 
     /**
@@ -565,7 +2018,7 @@ public class SyntaxDocument extends PlainDocument {
 
     @Override
     public String toString() {
-        return "SyntaxDocument(" + lexer + ", " + ((tokens == null) ? 0 : tokens.size()) + " tokens)@" +
+        return "SyntaxDocument(" + lexer + ", " + tokenState.size() + " tokens)@" +
                 hashCode();
     }
 
@@ -23,8 +23,19 @@ import javax.swing.text.Utilities;
 
 public final class SyntaxStyle {
 
+    /**
+     * The background of the text of styles with the 0x10 flag
+     */
+    static final Color BACKGROUND_COLOR = new Color(0xEEEEEE);
     private Color color;
     private int fontStyle;
+    /**
+     * The font drawText() last derived a font in this style from, the style
+     * it was derived in and the font it derived
+     */
+    private Font baseFont;
+    private int derivedStyle;
+    private Font derivedFont;
 
     public SyntaxStyle() {
         super();
@@ -107,25 +118,34 @@ public final class SyntaxStyle {
      */
     public int drawText(Segment segment, int x, int y,
             Graphics graphics, TabExpander e, int startOffset) {
-        graphics.setFont(graphics.getFont().deriveFont(getFontStyle()));
+        graphics.setFont(deriveFont(graphics.getFont()));
         FontMetrics fontMetrics = graphics.getFontMetrics();
         int a = fontMetrics.getAscent();
         int h = a + fontMetrics.getDescent();
-        int w = Utilities.getTabbedTextWidth(segment, fontMetrics, 0, e, startOffset);
         int rX = x - 1;
         int rY = y - a;
-        int rW = w + 2;
         int rH = h;
+        // the text is only measured before it is drawn if it has a background
         if ((getFontStyle() & 0x10) != 0) {
-            graphics.setColor(Color.decode("#EEEEEE"));
-            graphics.fillRect(rX, rY, rW, rH);
+            int w = Utilities.getTabbedTextWidth(segment, fontMetrics, 0, e, startOffset);
+            graphics.setColor(BACKGROUND_COLOR);
+            graphics.fillRect(rX, rY, w + 2, rH);
         }
         graphics.setColor(getColor());
-        x = Utilities.drawTabbedText(segment, x, y, graphics, e, startOffset);
+        int end = Utilities.drawTabbedText(segment, x, y, graphics, e, startOffset);
         if ((getFontStyle() & 0x8) != 0) {
             graphics.setColor(Color.RED);
-            graphics.drawRect(rX, rY, rW, rH);
+            graphics.drawRect(rX, rY, end - x + 2, rH);
+        }
+        return end;
+    }
+
+    private Font deriveFont(Font font) {
+        if (font != baseFont || fontStyle != derivedStyle) {
+            baseFont = font;
+            derivedStyle = fontStyle;
+            derivedFont = font.deriveFont(fontStyle);
         }
-        return x;
+        return derivedFont;
     }
 }
@@ -16,8 +16,6 @@ package jsyntaxpane;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 import javax.swing.text.Segment;
@@ -52,7 +50,10 @@ public class SyntaxStyles {
             }
         }
     }
-    Map<TokenType, SyntaxStyle> styles;
+    /**
+     * The style of each TokenType, by its ordinal, or null for the default
+     */
+    private final SyntaxStyle[] styles = new SyntaxStyle[TokenType.values().length];
     private static SyntaxStyles instance = createInstance();
     private static final Logger LOG = Logger.getLogger(SyntaxStyles.class.getName());
     
@@ -77,10 +78,7 @@ public class SyntaxStyles {
     }
 
     public void put(TokenType type, SyntaxStyle style) {
-        if (styles == null) {
-            styles = new HashMap<TokenType, SyntaxStyle>();
-        }
-        styles.put(type, style);
+        styles[type.ordinal()] = style;
     }
 
     /**
@@ -92,7 +90,7 @@ public class SyntaxStyles {
     @Deprecated
     public void setGraphicsStyle(Graphics g, TokenType type) {
         Font c = g.getFont();
-        SyntaxStyle ss = styles.get(type);
+        SyntaxStyle ss = styles[type.ordinal()];
         if (ss != null) {
             g.setFont(g.getFont().deriveFont(ss.getFontStyle()));
             g.setColor(ss.getColor());
@@ -108,11 +106,8 @@ public class SyntaxStyles {
      * @return
      */
     public SyntaxStyle getStyle(TokenType type) {
-        if (styles.containsKey(type)) {
-            return styles.get(type);
-        } else {
-            return DEFAULT_STYLE;
-        }
+        SyntaxStyle ss = styles[type.ordinal()];
+        return (ss == null) ? DEFAULT_STYLE : ss;
     }
 
     /**
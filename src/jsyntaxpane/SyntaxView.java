@@ -14,20 +14,32 @@
 package jsyntaxpane;
 
 import java.awt.Color;
+import java.awt.Container;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
 import javax.swing.text.PlainView;
+import javax.swing.text.Position;
 import javax.swing.text.Segment;
+import javax.swing.text.View;
+import javax.swing.text.Utilities;
 import javax.swing.text.ViewFactory;
 import jsyntaxpane.util.Configuration;
 
@@ -44,6 +56,36 @@ public class SyntaxView extends PlainView {
     private final int rightMarginColumn;
     private final Color rightMarginColor;
     private final Object textAAHint;
+    /**
+     * The font the metrics are of, the width of a tab, the width of the
+     * longest line of a MappedDocument, and the widths of the lines of
+     * other documents
+     */
+    private Font metricsFont;
+    private int tabWidth;
+    private int mappedWidth;
+    private final LineWidthIndex lineWidths = new LineWidthIndex();
+    /**
+     * The checkpoints along the long lines, see {@link LineCheckpoints}
+     */
+    private final LineCheckpoints checkpoints = new LineCheckpoints();
+    /**
+     * The glyphs of the lines painted, see {@link LineRenderCache}
+     */
+    private final LineRenderCache renderCache = new LineRenderCache();
+    /**
+     * The styles of the parts of the text drawUnselectedText() paints, and
+     * where they start in it
+     */
+    private SyntaxStyle[] runStyles = new SyntaxStyle[16];
+    private int[] runBounds = new int[17];
+    /**
+     * The font the column width was found for, and the width of a column,
+     * or 0 if the font is not fixed-pitch.  See getColumnWidth().
+     */
+    private Font columnFont;
+    private int columnWidth;
+    private final Segment columnSegment = new Segment();
 
     /**
      * Construct a new view using the given configuration and prefix given
@@ -76,15 +118,11 @@ public class SyntaxView extends PlainView {
         Segment segment = getLineBuffer();
         // Draw the right margin first, if needed.  This way the text overalys
         // the margin
-        if (rightMarginColumn > 0) {
-            int m_x = rightMarginColumn * graphics.getFontMetrics().charWidth('m');
-            int h = graphics.getFontMetrics().getHeight();
-            graphics.setColor(rightMarginColor);
-            graphics.drawLine(m_x, y, m_x, y - h);
-        }
+        drawRightMargin(graphics, y);
         try {
             // Colour the parts
             Iterator<Token> i = doc.getTokens(p0, p1);
+            int runs = 0;
             int start = p0;
             while (i.hasNext()) {
                 Token t = i.next();
@@ -92,32 +130,32 @@ public class SyntaxView extends PlainView {
                 // should be starting (spaces not returned in tokens), then draw
                 // it in the default type
                 if (start < t.start) {
-                    doc.getText(start, t.start - start, segment);
-                    x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
+                    runs = addRun(runs, DEFAULT_STYLE, start - p0, t.start - p0);
                 }
-                // t and s are the actual start and length of what we should
+                // t and s are the actual start and end of what we should
                 // put on the screen.  assume these are the whole token....
-                int l = t.length;
-                int s = t.start;
-                // ... unless the token starts before p0:
-                if (s < p0) {
-                    // token is before what is requested. adgust the length and s
-                    l -= (p0 - s);
-                    s = p0;
-                }
-                // if token end (s + l is still the token end pos) is greater 
-                // than p1, then just put up to p1
-                if (s + l > p1) {
-                    l = p1 - s;
-                }
-                doc.getText(s, l, segment);
-                x = SyntaxStyles.getInstance().drawText(segment, x, y, graphics, this, t);
+                int s = Math.max(t.start, p0);
+                // ... unless the token ends after p1
+                int e = Math.min(t.end(), p1);
+                runs = addRun(runs, SyntaxStyles.getInstance().getStyle(t.type), s - p0, e - p0);
                 start = t.end();
             }
             // now for any remaining text not tokenized:
             if (start < p1) {
-                doc.getText(start, p1 - start, segment);
-                x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
+                runs = addRun(runs, DEFAULT_STYLE, start - p0, p1 - p0);
+            }
+            doc.getText(p0, p1 - p0, segment);
+            int end = renderCache.draw(graphics2D, x, y, segment, runStyles, runBounds, runs,
+                    this, p0, getColumnWidth());
+            if (end >= 0) {
+                x = end;
+            } else {
+                for (int r = 0; r < runs; r++) {
+                    // each style derives its font from the same one
+                    graphics.setFont(saveFont);
+                    doc.getText(p0 + runBounds[r], runBounds[r + 1] - runBounds[r], segment);
+                    x = runStyles[r].drawText(segment, x, y, graphics, this, p0 + runBounds[r]);
+                }
             }
         } catch (BadLocationException ex) {
             System.err.println("Requested: " + ex.offsetRequested());
@@ -129,29 +167,636 @@ public class SyntaxView extends PlainView {
         return x;
     }
 
+    private void drawRightMargin(Graphics graphics, int y) {
+        if (rightMarginColumn > 0) {
+            int w = getColumnWidth();
+            if (w == 0) {
+                w = graphics.getFontMetrics().charWidth('m');
+            }
+            int m_x = rightMarginColumn * w;
+            int h = metrics.getHeight();
+            graphics.setColor(rightMarginColor);
+            graphics.drawLine(m_x, y, m_x, y - h);
+        }
+    }
+
+    /**
+     * Add a part of the given style from start to end to the parts to paint
+     * @return the number of parts
+     */
+    private int addRun(int runs, SyntaxStyle style, int start, int end) {
+        if (runs > 0) {
+            // a token overlapping the one before is painted after it
+            start = Math.max(start, runBounds[runs]);
+        }
+        if (end <= start) {
+            return runs;
+        }
+        if (runs + 1 >= runStyles.length) {
+            runStyles = Arrays.copyOf(runStyles, 2 * runStyles.length);
+            runBounds = Arrays.copyOf(runBounds, 2 * runBounds.length);
+        }
+        runStyles[runs] = style;
+        runBounds[runs] = start;
+        runBounds[runs + 1] = end;
+        return runs + 1;
+    }
+
     @Override
     protected int drawSelectedText(Graphics graphics, int x, int y, int p0, int p1)
             throws BadLocationException {
         if (singleColorSelect) {
-            if (rightMarginColumn > 0) {
-                int m_x = rightMarginColumn * graphics.getFontMetrics().charWidth('m');
-                int h = graphics.getFontMetrics().getHeight();
-                graphics.setColor(rightMarginColor);
-                graphics.drawLine(m_x, y, m_x, y - h);
-            }
+            drawRightMargin(graphics, y);
             return super.drawUnselectedText(graphics, x, y, p0, p1);
         } else {
             return drawUnselectedText(graphics, x, y, p0, p1);
         }
     }
 
+    /**
+     * Repaints the lines whose tokens the document has lexed again, since
+     * their text was painted before its tokens were known
+     */
+    private final ChangeListener tokenListener = new ChangeListener() {
+
+        @Override
+        public void stateChanged(ChangeEvent e) {
+            Container host = getContainer();
+            if (host == null) {
+                return;
+            }
+            if (!(e instanceof TokenChangeEvent)) {
+                host.repaint();
+                return;
+            }
+            TokenChangeEvent change = (TokenChangeEvent) e;
+            if (change.getEnd() > change.getStart()) {
+                Element root = getElement();
+                int line0 = root.getElementIndex(change.getStart());
+                int line1 = root.getElementIndex(change.getEnd() - 1);
+                damageLineRange(line0, line1, getAllocation(host), host);
+            }
+        }
+    };
+
+    /**
+     * @return the area of the host the view paints, which is all of it
+     * inside its insets
+     */
+    private static Rectangle getAllocation(Container host) {
+        Insets insets = host.getInsets();
+        return new Rectangle(insets.left, insets.top,
+                host.getWidth() - insets.left - insets.right,
+                host.getHeight() - insets.top - insets.bottom);
+    }
+
+    @Override
+    public void setParent(View parent) {
+        // the view may be made for the old document of an editor that is
+        // just switching to this kit
+        if (getDocument() instanceof SyntaxDocument) {
+            SyntaxDocument doc = (SyntaxDocument) getDocument();
+            if (parent == null) {
+                doc.removeTokenChangeListener(tokenListener);
+            } else if (getParent() == null) {
+                doc.addTokenChangeListener(tokenListener);
+            }
+        }
+        super.setParent(parent);
+    }
+
+    /**
+     * @return the width of every char the font draws a column wide, in all
+     * its styles, or 0 if the font is not fixed-pitch.  It is found once
+     * for each font of the host.
+     */
+    int getColumnWidth() {
+        Container host = getContainer();
+        if (host == null) {
+            return 0;
+        }
+        Font f = host.getFont();
+        if (f != columnFont) {
+            columnFont = f;
+            columnWidth = measureColumnWidth(host, f);
+        }
+        return columnWidth;
+    }
+
+    private static int measureColumnWidth(Container host, Font f) {
+        int width = -1;
+        for (int style = Font.PLAIN; style <= (Font.BOLD | Font.ITALIC); style++) {
+            int[] widths = host.getFontMetrics(f.deriveFont(style)).getWidths();
+            for (char c = ' '; isColumnChar(c); c++) {
+                if (width < 0) {
+                    width = widths[c];
+                } else if (widths[c] != width) {
+                    return 0;
+                }
+            }
+        }
+        return Math.max(width, 0);
+    }
+
+    /**
+     * The chars a fixed-pitch font is known to draw a column wide, which
+     * are the printable ASCII ones.  Lines with others are measured with
+     * the FontMetrics.
+     */
+    static boolean isColumnChar(char c) {
+        return c >= ' ' && c <= '~';
+    }
+
+    /**
+     * @return the column after the text from the given column, with tabs
+     * expanded, or -1 if it has a char that may not be a column wide
+     */
+    private int getColumn(Segment s, int column) {
+        int tabSize = getTabSize();
+        for (int i = s.offset; i < s.offset + s.count; i++) {
+            char c = s.array[i];
+            if (c == '\t') {
+                if (tabSize > 0) {
+                    column = (column / tabSize + 1) * tabSize;
+                }
+            } else if (isColumnChar(c)) {
+                column++;
+            } else {
+                return -1;
+            }
+        }
+        return column;
+    }
+
+    /**
+     * The x of a position of a long line is measured from the checkpoint
+     * before it.  With a fixed-pitch font the x of a position is its column
+     * times the column width.
+     */
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        int w = getColumnWidth();
+        Element map = getElement();
+        int lineIndex = map.getElementIndex(pos);
+        if (lineIndex >= 0 && LineCheckpoints.isLong(map.getElement(lineIndex))) {
+            if (pos < 0 || pos > getDocument().getLength()) {
+                throw new BadLocationException("Invalid position", pos);
+            }
+            Element line = map.getElement(lineIndex);
+            Rectangle lineArea = lineToRect(a, lineIndex);
+            lineArea.x += getLongLineX(line, pos - line.getStartOffset());
+            lineArea.width = 1;
+            lineArea.height = metrics.getHeight();
+            return lineArea;
+        }
+        if (w > 0 && lineIndex >= 0) {
+            int p0 = map.getElement(lineIndex).getStartOffset();
+            getDocument().getText(p0, pos - p0, columnSegment);
+            int column = getColumn(columnSegment, 0);
+            if (column >= 0) {
+                Rectangle lineArea = lineToRect(a, lineIndex);
+                lineArea.x += column * w;
+                lineArea.width = 1;
+                lineArea.height = metrics.getHeight();
+                return lineArea;
+            }
+        }
+        return super.modelToView(pos, a, b);
+    }
+
+    /**
+     * The position at a point of a long line is found from the checkpoint
+     * before the point.  With a fixed-pitch font the position at a point is
+     * found from the column of the point, rounded to the nearest boundary
+     * between chars.
+     */
+    @Override
+    public int viewToModel(float fx, float fy, Shape a, Position.Bias[] bias) {
+        int w = getColumnWidth();
+        Rectangle alloc = a.getBounds();
+        int fontHeight = metrics.getHeight();
+        Element map = getElement();
+        if (fontHeight <= 0 || fy < alloc.y || fy > alloc.y + alloc.height
+                || fx < alloc.x || fx > alloc.x + alloc.width) {
+            return super.viewToModel(fx, fy, a, bias);
+        }
+        int lineIndex = (int) ((fy - alloc.y) / fontHeight);
+        if (lineIndex >= map.getElementCount()) {
+            return super.viewToModel(fx, fy, a, bias);
+        }
+        Element line = map.getElement(lineIndex);
+        if (LineCheckpoints.isLong(line)) {
+            bias[0] = Position.Bias.Forward;
+            return line.getStartOffset() + getLongLineOffset(line, (int) (fx - alloc.x));
+        }
+        if (w == 0) {
+            return super.viewToModel(fx, fy, a, bias);
+        }
+        int p0 = line.getStartOffset();
+        try {
+            getDocument().getText(p0, line.getEndOffset() - 1 - p0, columnSegment);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return -1;
+        }
+        float span = fx - alloc.x;
+        int tabSize = getTabSize();
+        int column = 0;
+        Segment s = columnSegment;
+        for (int i = 0; i < s.count; i++) {
+            char c = s.array[s.offset + i];
+            int next;
+            if (c == '\t') {
+                next = (tabSize > 0) ? (column / tabSize + 1) * tabSize : column;
+            } else if (isColumnChar(c)) {
+                next = column + 1;
+            } else {
+                return super.viewToModel(fx, fy, a, bias);
+            }
+            if (span < next * w) {
+                bias[0] = Position.Bias.Forward;
+                return (span - column * w < next * w - span) ? p0 + i : p0 + i + 1;
+            }
+            column = next;
+        }
+        bias[0] = Position.Bias.Forward;
+        return p0 + s.count;
+    }
+
+    /**
+     * PlainView finds the longest line again by measuring every line when
+     * the longest one is changed or removed.  Here only the lines changed
+     * are measured, and lines added are measured when they are painted.
+     *
+     * PlainView also repaints the whole host when lines are replaced.  But
+     * PlainDocument replaces the line before an insert at the start of a
+     * line, and that line, without adding any, so when as many lines are
+     * added as removed only those lines are repainted.
+     */
+    @Override
+    protected void updateDamage(DocumentEvent changes, Shape a, ViewFactory f) {
+        Container host = getContainer();
+        updateMetrics();
+        Element root = getElement();
+        int oldWidth = lineWidths.getMax();
+        DocumentEvent.ElementChange ec = changes.getChange(root);
+        if (ec != null) {
+            int added = ec.getChildrenAdded().length;
+            int removed = ec.getChildrenRemoved().length;
+            for (Element line : ec.getChildrenRemoved()) {
+                checkpoints.removed(line);
+            }
+            lineWidths.replace(ec.getIndex(), removed, added);
+            if (added != removed) {
+                // the lines after the change moved
+                preferenceChanged(null, true, true);
+                damageToEnd(ec.getIndex(), a, host);
+                return;
+            }
+            for (int line = ec.getIndex(); line < ec.getIndex() + added; line++) {
+                lineWidths.set(line, measureLine(root.getElement(line)));
+            }
+            damageLineRange(ec.getIndex(), ec.getIndex() + added - 1, a, host);
+        } else {
+            int line = root.getElementIndex(changes.getOffset());
+            checkpoints.changed(root.getElement(line), changes.getOffset());
+            lineWidths.set(line, measureLine(root.getElement(line)));
+            damageLineRange(line, line, a, host);
+        }
+        if (lineWidths.getMax() != oldWidth) {
+            preferenceChanged(null, true, false);
+        }
+    }
+
+    /**
+     * Repaint from the top of the given line to the bottom of the visible
+     * part of the host, like damageLineRange() nothing before the host is
+     * painted
+     */
+    private void damageToEnd(int line, Shape a, Container host) {
+        if (a == null) {
+            return;
+        }
+        Rectangle area = lineToRect(a, line);
+        if (area == null || !(host instanceof JTextComponent)) {
+            host.repaint();
+            return;
+        }
+        Rectangle visible = ((JTextComponent) host).getVisibleRect();
+        int bottom = visible.y + visible.height;
+        if (area.y < bottom) {
+            host.repaint(visible.x, area.y, visible.width, bottom - area.y);
+        }
+    }
+
+    /**
+     * Lines of unknown width are measured as they are painted.  Only the
+     * part of a long line between the checkpoints around the clip is
+     * painted.
+     */
     @Override
-    protected void updateDamage(javax.swing.event.DocumentEvent changes,
-            Shape a,
-            ViewFactory f) {
-        super.updateDamage(changes, a, f);
-        java.awt.Component host = getContainer();
-        host.repaint();
+    protected void drawLine(int lineIndex, Graphics g, int x, int y) {
+        Element line = getElement().getElement(lineIndex);
+        if (!(getDocument() instanceof MappedDocument)
+                && lineWidths.get(lineIndex) == LineWidthIndex.UNKNOWN) {
+            int oldWidth = lineWidths.getMax();
+            lineWidths.set(lineIndex, measureLine(line));
+            if (lineWidths.getMax() != oldWidth) {
+                preferenceChanged(null, true, false);
+            }
+        }
+        if (!LineCheckpoints.isLong(line) || !line.isLeaf()) {
+            super.drawLine(lineIndex, g, x, y);
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        int left = (clip == null) ? 0 : clip.x - x;
+        int right = (clip == null) ? Integer.MAX_VALUE : clip.x + clip.width - x;
+        LineCheckpoints.Line cp = checkpoints.get(line);
+        addCheckpoints(line, cp, Integer.MAX_VALUE, right);
+        int first = cp.indexOfX(left);
+        int last = cp.indexOfX(right) + 1;
+        int p0 = line.getStartOffset() + cp.getOffset(first);
+        int p1 = (last < cp.getCount()) ? line.getStartOffset() + cp.getOffset(last)
+                : Math.min(getDocument().getLength(), line.getEndOffset());
+        try {
+            drawText(g, x + cp.getX(first), y, p0, p1);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Draw the text from p0 to p1 of a line, its selected part as selected,
+     * like PlainView draws a line
+     */
+    private int drawText(Graphics g, int x, int y, int p0, int p1)
+            throws BadLocationException {
+        JTextComponent host = (JTextComponent) getContainer();
+        int sel0 = host.getSelectionStart();
+        int sel1 = host.getSelectionEnd();
+        Color unselected = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+        Color selected = (host.getCaret().isSelectionVisible() && host.getHighlighter() != null)
+                ? host.getSelectedTextColor() : unselected;
+        if (sel0 == sel1 || selected == unselected) {
+            x = drawUnselectedText(g, x, y, p0, p1);
+        } else if ((p0 >= sel0 && p0 <= sel1) && (p1 >= sel0 && p1 <= sel1)) {
+            x = drawSelectedText(g, x, y, p0, p1);
+        } else if (sel0 >= p0 && sel0 <= p1) {
+            if (sel1 >= p0 && sel1 <= p1) {
+                x = drawUnselectedText(g, x, y, p0, sel0);
+                x = drawSelectedText(g, x, y, sel0, sel1);
+                x = drawUnselectedText(g, x, y, sel1, p1);
+            } else {
+                x = drawUnselectedText(g, x, y, p0, sel0);
+                x = drawSelectedText(g, x, y, sel0, p1);
+            }
+        } else if (sel1 >= p0 && sel1 <= p1) {
+            x = drawSelectedText(g, x, y, p0, sel1);
+            x = drawUnselectedText(g, x, y, sel1, p1);
+        } else {
+            x = drawUnselectedText(g, x, y, p0, p1);
+        }
+        return x;
+    }
+
+    /**
+     * @return the x of an offset of a long line from the start of the line
+     */
+    private int getLongLineX(Element line, int offset) {
+        LineCheckpoints.Line cp = checkpoints.get(line);
+        addCheckpoints(line, cp, offset, Integer.MAX_VALUE);
+        int i = cp.indexOfOffset(offset);
+        int start = cp.getOffset(i);
+        if (!readLine(line, start, offset)) {
+            return cp.getX(i);
+        }
+        return measureText(columnSegment, cp.getX(i), line.getStartOffset() + start);
+    }
+
+    /**
+     * @return the offset from the start of a long line nearest to an x from
+     * the start of the line
+     */
+    private int getLongLineOffset(Element line, int x) {
+        LineCheckpoints.Line cp = checkpoints.get(line);
+        addCheckpoints(line, cp, Integer.MAX_VALUE, x + 1);
+        int i = cp.indexOfX(x);
+        int start = cp.getOffset(i);
+        int end = (i + 1 < cp.getCount()) ? cp.getOffset(i + 1)
+                : line.getEndOffset() - 1 - line.getStartOffset();
+        if (!readLine(line, start, end)) {
+            return start;
+        }
+        int tabBase = getTabBase();
+        return start + Utilities.getTabbedTextOffset(columnSegment, metrics,
+                tabBase + cp.getX(i), tabBase + x, this, line.getStartOffset() + start, true);
+    }
+
+    /**
+     * Add checkpoints along a long line until there is one at or after the
+     * given offset or x, or at the end of the line
+     */
+    private void addCheckpoints(Element line, LineCheckpoints.Line cp, int offset, int x) {
+        int length = line.getEndOffset() - 1 - line.getStartOffset();
+        int last = cp.getCount() - 1;
+        int start = cp.getOffset(last);
+        int cx = cp.getX(last);
+        if (start >= length) {
+            return;
+        }
+        while (start < length && start < offset && cx < x) {
+            int end = Math.min(start + LineCheckpoints.INTERVAL + 1, length);
+            if (!readLine(line, start, end)) {
+                return;
+            }
+            // the char after the interval is only read to not split a
+            // surrogate pair
+            Segment s = columnSegment;
+            if (end < length && !Character.isLowSurrogate(s.array[s.offset + s.count - 1])) {
+                s.count--;
+            }
+            cx = measureText(s, cx, line.getStartOffset() + start);
+            start += s.count;
+            cp.add(start, cx);
+        }
+        if (start >= length) {
+            setLongLineWidth(line, cx);
+        }
+    }
+
+    /**
+     * @return the width of a long line up to its last checkpoint, and the
+     * rest of it estimated at the width of an m for each char.  The width
+     * is set when the checkpoints reach its end.
+     */
+    private int estimateLongLine(Element line) {
+        LineCheckpoints.Line cp = checkpoints.get(line);
+        int last = cp.getCount() - 1;
+        int length = line.getEndOffset() - 1 - line.getStartOffset();
+        int w = getColumnWidth();
+        if (w == 0) {
+            w = metrics.charWidth('m');
+        }
+        return cp.getX(last) + (length - cp.getOffset(last)) * w;
+    }
+
+    private void setLongLineWidth(Element line, int width) {
+        if (getDocument() instanceof MappedDocument) {
+            if (width != mappedWidth
+                    && line.equals(((MappedDocument) getDocument()).getLongestLine())) {
+                mappedWidth = width;
+                preferenceChanged(null, true, false);
+            }
+            return;
+        }
+        Element root = getElement();
+        int index = root.getElementIndex(line.getStartOffset());
+        if (root.getElement(index) == line && lineWidths.get(index) != width) {
+            int oldWidth = lineWidths.getMax();
+            lineWidths.set(index, width);
+            if (lineWidths.getMax() != oldWidth) {
+                preferenceChanged(null, true, false);
+            }
+        }
+    }
+
+    /**
+     * Read the text of a line from start to end, offsets from the start of
+     * the line, into the column segment
+     * @return false if it could not be read
+     */
+    private boolean readLine(Element line, int start, int end) {
+        try {
+            getDocument().getText(line.getStartOffset() + start, end - start, columnSegment);
+            return true;
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return the x after text drawn at x from the tab base
+     */
+    private int measureText(Segment s, int x, int offset) {
+        int w = getColumnWidth();
+        if (w > 0 && x % w == 0) {
+            int column = getColumn(s, x / w);
+            if (column >= 0) {
+                return column * w;
+            }
+        }
+        int tabBase = getTabBase();
+        return x + Utilities.getTabbedTextWidth(s, metrics, tabBase + x, this, offset);
+    }
+
+    /**
+     * PlainView measures every line to find the longest one when the font
+     * changes.  Here the widths of the lines are forgotten, and found again
+     * as they are painted.  The longest line of a MappedDocument is known
+     * from its index, so only that line is measured.
+     */
+    @Override
+    protected void updateMetrics() {
+        Container host = getContainer();
+        Font f = host.getFont();
+        FontMetrics fm = host.getFontMetrics(f);
+        if (f != metricsFont || !fm.equals(metrics)) {
+            metricsFont = f;
+            metrics = fm;
+            tabWidth = getTabSize() * metrics.charWidth('m');
+            checkpoints.clear();
+            if (getDocument() instanceof MappedDocument) {
+                mappedWidth = measureLine(((MappedDocument) getDocument()).getLongestLine());
+            } else {
+                lineWidths.reset(getElement().getElementCount());
+            }
+        }
+    }
+
+    /**
+     * @return the width of the text of a line, read a part at a time
+     */
+    private int measureLine(Element line) {
+        if (LineCheckpoints.isLong(line)) {
+            return estimateLongLine(line);
+        }
+        int w = getColumnWidth();
+        if (w > 0) {
+            int columns = measureColumns(line);
+            if (columns >= 0) {
+                return columns * w;
+            }
+        }
+        Segment s = new Segment();
+        s.setPartialReturn(true);
+        int x = getTabBase();
+        int pos = line.getStartOffset();
+        int end = line.getEndOffset() - 1;
+        try {
+            while (pos < end) {
+                getDocument().getText(pos, end - pos, s);
+                x += Utilities.getTabbedTextWidth(s, metrics, x, this, pos);
+                pos += s.count;
+            }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        return x - getTabBase();
+    }
+
+    /**
+     * @return the columns of the text of a line, or -1 if it has a char
+     * that may not be a column wide
+     */
+    private int measureColumns(Element line) {
+        Segment s = new Segment();
+        s.setPartialReturn(true);
+        int column = 0;
+        int pos = line.getStartOffset();
+        int end = line.getEndOffset() - 1;
+        try {
+            while (pos < end && column >= 0) {
+                getDocument().getText(pos, end - pos, s);
+                column = getColumn(s, column);
+                pos += s.count;
+            }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        return column;
+    }
+
+    /**
+     * The tabs are measured from the left inset of the editor, where
+     * PlainView puts them when it paints
+     */
+    private int getTabBase() {
+        Container host = getContainer();
+        return (host == null) ? 0 : host.getInsets().left;
+    }
+
+    @Override
+    public float nextTabStop(float x, int tabOffset) {
+        if (tabWidth == 0) {
+            return x;
+        }
+        int tabBase = getTabBase();
+        int ntabs = (((int) x) - tabBase) / tabWidth;
+        return tabBase + ((ntabs + 1) * tabWidth);
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        if (axis == X_AXIS) {
+            updateMetrics();
+            if (getDocument() instanceof MappedDocument) {
+                return mappedWidth;
+            }
+            return lineWidths.getMax();
+        }
+        return super.getPreferredSpan(axis);
     }
 
     /**
@@ -0,0 +1,649 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.Arrays;
+
+/**
+ * An immutable list of tokens kept in parallel primitive arrays instead of
+ * one Token object per token.  Tokens are in document order and do not
+ * overlap, so they can be looked up by offset with a binary search.  Token
+ * objects are only created when asked for with {@link #getToken(int)}.
+ *
+ * The tokens are split in chunks of a few hundred, with the token starts
+ * of each chunk stored relative to the chunk base offset.  Replacing some
+ * tokens with {@link #splice} creates a new buffer that shares all the
+ * untouched chunks with this one.  The chunks after the change are moved by
+ * a single offset kept with the buffer rather than by rewriting their bases,
+ * so that repeated edits in one place, like typing, cost the same however
+ * many tokens follow.  Much like the gap of a GapContent, that offset is
+ * only folded into the chunk bases when an edit lands somewhere else.
+ *
+ * Use a {@link Builder} to create one.
+ */
+public final class TokenBuffer {
+
+    /**
+     * Number of tokens a chunk is created with.  Chunks are allowed to grow
+     * to twice this before being split.
+     */
+    static final int CHUNK_SIZE = 512;
+    public static final TokenBuffer EMPTY = new Builder(0).build();
+    private static final TokenType[] TYPES = TokenType.values();
+    // the arrays below may be shared with other buffers, and are never changed
+    private final Chunk[] chunks;
+    private final int[] bases;
+    private final int[] firsts;
+    private final int chunkCount;
+    // chunks from shiftChunk on are moved by shiftOffset, and their first
+    // token index by shiftCount
+    private final int shiftChunk;
+    private final int shiftOffset;
+    private final int shiftCount;
+    // the chunk at editIndex is replaced by edited (-1 if none)
+    private final int editIndex;
+    private final Chunk edited;
+    private final int size;
+
+    /**
+     * A run of tokens with starts relative to the base of the chunk
+     */
+    private static final class Chunk {
+
+        final int[] starts;
+        final int[] lengths;
+        final byte[] types;
+        final byte[] pairValues;
+        final int[] hashes;
+        final int size;
+        // built when first needed, racing threads build equal copies
+        private volatile Pairs pairs;
+        private volatile long[] words;
+
+        Chunk(int[] starts, int[] lengths, byte[] types, byte[] pairValues,
+                int[] hashes, int size) {
+            this.starts = starts;
+            this.lengths = lengths;
+            this.types = types;
+            this.pairValues = pairValues;
+            this.hashes = hashes;
+            this.size = size;
+        }
+
+        Pairs pairs() {
+            Pairs p = pairs;
+            if (p == null) {
+                p = new Pairs(pairValues, size);
+                pairs = p;
+            }
+            return p;
+        }
+
+        /**
+         * Return the hashed tokens of the chunk as (hash, index) pairs packed
+         * in longs, sorted by hash and then index
+         */
+        long[] words() {
+            long[] w = words;
+            if (w == null) {
+                int count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (hashes[i] != 0) {
+                        count++;
+                    }
+                }
+                w = new long[count];
+                count = 0;
+                for (int i = 0; i < size; i++) {
+                    if (hashes[i] != 0) {
+                        w[count++] = ((long) hashes[i] << 32) | i;
+                    }
+                }
+                Arrays.sort(w);
+                words = w;
+            }
+            return w;
+        }
+    }
+
+    /**
+     * The paired tokens of a chunk: the partner of each token matched within
+     * the chunk, and the tokens left unmatched, which are matched across
+     * chunks by counting.  Tokens are paired with the nearest unmatched
+     * token of the same absolute pairValue and the opposite sign, as in
+     * {@link SyntaxDocument#getPairFor(Token)}.
+     */
+    private static final class Pairs {
+
+        // index of the partner in the chunk, or -1
+        final int[] partners;
+        // the unmatched openers and closers, in order
+        final int[] opens;
+        final int[] closes;
+        final byte[] pairValues;
+
+        Pairs(byte[] pairValues, int size) {
+            this.pairValues = pairValues;
+            partners = new int[size];
+            // one stack of openers per absolute pairValue: top holds the
+            // last opener, and partners links it to the one before
+            int[] top = new int[129];
+            Arrays.fill(top, -1);
+            int closeCount = 0;
+            for (int i = 0; i < size; i++) {
+                int v = pairValues[i];
+                partners[i] = -1;
+                if (v > 0) {
+                    partners[i] = top[v];
+                    top[v] = i;
+                } else if (v < 0) {
+                    int open = top[-v];
+                    if (open >= 0) {
+                        top[-v] = partners[open];
+                        partners[open] = i;
+                        partners[i] = open;
+                    } else {
+                        closeCount++;
+                    }
+                }
+            }
+            int openCount = 0;
+            for (int v = 1; v < top.length; v++) {
+                for (int open = top[v]; open >= 0; openCount++) {
+                    int next = partners[open];
+                    partners[open] = -1;
+                    open = next;
+                }
+            }
+            opens = new int[openCount];
+            closes = new int[closeCount];
+            int o = 0;
+            int c = 0;
+            for (int i = 0; i < size; i++) {
+                if (pairValues[i] != 0 && partners[i] < 0) {
+                    if (pairValues[i] > 0) {
+                        opens[o++] = i;
+                    } else {
+                        closes[c++] = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Return the number of tokens in list with the absolute pairValue v
+         * in the chunk range [from, to)
+         */
+        int count(int[] list, int v, int from, int to) {
+            int n = 0;
+            for (int i : list) {
+                if (i >= from && i < to && Math.abs(pairValues[i]) == v) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Return the n-th token in list with the absolute pairValue v,
+         * counting from 1, from the front or from the back
+         */
+        int nth(int[] list, int v, int n, boolean fromBack) {
+            for (int k = 0; k < list.length; k++) {
+                int i = list[fromBack ? list.length - 1 - k : k];
+                if (Math.abs(pairValues[i]) == v && --n == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private TokenBuffer(Chunk[] chunks, int[] bases, int[] firsts, int chunkCount,
+            int shiftChunk, int shiftOffset, int shiftCount,
+            int editIndex, Chunk edited, int size) {
+        this.chunks = chunks;
+        this.bases = bases;
+        this.firsts = firsts;
+        this.chunkCount = chunkCount;
+        this.shiftChunk = shiftChunk;
+        this.shiftOffset = shiftOffset;
+        this.shiftCount = shiftCount;
+        this.editIndex = editIndex;
+        this.edited = edited;
+        this.size = size;
+    }
+
+    private Chunk chunk(int c) {
+        return (c == editIndex) ? edited : chunks[c];
+    }
+
+    private int base(int c) {
+        return (c >= shiftChunk) ? bases[c] + shiftOffset : bases[c];
+    }
+
+    private int first(int c) {
+        return (c >= shiftChunk) ? firsts[c] + shiftCount : firsts[c];
+    }
+
+    /**
+     * Return the index of the chunk holding the token at index
+     */
+    private int chunkOf(int index) {
+        int lo = 0;
+        int hi = chunkCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (first(mid) <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the number of tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getStart(int index) {
+        int c = chunkOf(index);
+        return base(c) + chunk(c).starts[index - first(c)];
+    }
+
+    public int getLength(int index) {
+        int c = chunkOf(index);
+        return chunk(c).lengths[index - first(c)];
+    }
+
+    public int getEnd(int index) {
+        int c = chunkOf(index);
+        Chunk chunk = chunk(c);
+        int i = index - first(c);
+        return base(c) + chunk.starts[i] + chunk.lengths[i];
+    }
+
+    public TokenType getType(int index) {
+        int c = chunkOf(index);
+        return TYPES[chunk(c).types[index - first(c)]];
+    }
+
+    public byte getPairValue(int index) {
+        int c = chunkOf(index);
+        return chunk(c).pairValues[index - first(c)];
+    }
+
+    /**
+     * Return the index of the other part of the paired token at index, or -1
+     * if the token is not paired or has no partner.  Partners within a chunk
+     * are found in constant time, others by skipping over the chunks between
+     * them using the counts of their unmatched tokens.
+     * @param index
+     * @return index of the partner token, or -1
+     */
+    public int findPartner(int index) {
+        int c = chunkOf(index);
+        Chunk chunk = chunk(c);
+        int i = index - first(c);
+        int v = chunk.pairValues[i];
+        if (v == 0) {
+            return -1;
+        }
+        Pairs pairs = chunk.pairs();
+        if (pairs.partners[i] >= 0) {
+            return first(c) + pairs.partners[i];
+        }
+        if (v > 0) {
+            // the unmatched openers after this one are closed first
+            int depth = 1 + pairs.count(pairs.opens, v, i + 1, chunk.size);
+            for (c++; c < chunkCount; c++) {
+                pairs = chunk(c).pairs();
+                int closes = pairs.count(pairs.closes, v, 0, Integer.MAX_VALUE);
+                if (closes >= depth) {
+                    return first(c) + pairs.nth(pairs.closes, v, depth, false);
+                }
+                depth += pairs.count(pairs.opens, v, 0, Integer.MAX_VALUE) - closes;
+            }
+        } else {
+            v = -v;
+            int depth = 1 + pairs.count(pairs.closes, v, 0, i);
+            for (c--; c >= 0; c--) {
+                pairs = chunk(c).pairs();
+                int opens = pairs.count(pairs.opens, v, 0, Integer.MAX_VALUE);
+                if (opens >= depth) {
+                    return first(c) + pairs.nth(pairs.opens, v, depth, true);
+                }
+                depth += pairs.count(pairs.closes, v, 0, Integer.MAX_VALUE) - opens;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the hash of the text of the token at index, as given to the
+     * Builder
+     * @param index
+     * @return text hash, or 0 if the token was added without one
+     */
+    public int getHash(int index) {
+        int c = chunkOf(index);
+        return chunk(c).hashes[index - first(c)];
+    }
+
+    /**
+     * Return the indices of all the tokens added with the given hash, in
+     * order.  Each chunk keeps its tokens sorted by hash, so this is a binary
+     * search per chunk, and only chunks changed by an edit are sorted again.
+     * @param hash a hash other than 0
+     * @return sorted token indices
+     */
+    public int[] findHash(int hash) {
+        int[] result = new int[16];
+        int count = 0;
+        long key = (long) hash << 32;
+        for (int c = 0; c < chunkCount; c++) {
+            long[] words = chunk(c).words();
+            int lo = 0;
+            int hi = words.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (words[mid] < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (; lo < words.length && (int) (words[lo] >> 32) == hash; lo++) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, 2 * count);
+                }
+                result[count++] = first(c) + (int) words[lo];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Create a Token object for the token at index
+     * @param index
+     * @return new Token
+     */
+    public Token getToken(int index) {
+        int c = chunkOf(index);
+        Chunk chunk = chunk(c);
+        int i = index - first(c);
+        return new Token(TYPES[chunk.types[i]], base(c) + chunk.starts[i],
+                chunk.lengths[i], chunk.pairValues[i]);
+    }
+
+    /**
+     * Return the index of the first token that ends after pos, which is also
+     * the number of tokens that end at or before pos.
+     * @param pos
+     * @return index of the first token ending after pos, or size() if none
+     */
+    public int findEndingAfter(int pos) {
+        // find the first chunk whose last token ends after pos
+        int lo = 0;
+        int hi = chunkCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Chunk chunk = chunk(mid);
+            int last = chunk.size - 1;
+            if (base(mid) + chunk.starts[last] + chunk.lengths[last] <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == chunkCount) {
+            return size;
+        }
+        int c = lo;
+        Chunk chunk = chunk(c);
+        int rel = pos - base(c);
+        lo = 0;
+        hi = chunk.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (chunk.starts[mid] + chunk.lengths[mid] <= rel) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return first(c) + lo;
+    }
+
+    /**
+     * Return a new buffer with the tokens [from, to) replaced by the tokens
+     * of replacement, and the tokens from <code>to</code> on moved by delta.
+     * This buffer is not changed.
+     * @param from index of the first token to replace
+     * @param to index after the last token to replace
+     * @param replacement the new tokens, at their final offsets
+     * @param delta offset to move the tokens after the replaced ones by
+     * @return new TokenBuffer
+     */
+    public TokenBuffer splice(int from, int to, Builder replacement, int delta) {
+        if (chunkCount == 0) {
+            return replacement.build();
+        }
+        int c0 = chunkOf(Math.min(from, size - 1));
+        int c1 = Math.max(c0, chunkOf(Math.max(from, to - 1)));
+        int runFirst = first(c0);
+        int runEnd = (c1 + 1 < chunkCount) ? first(c1 + 1) : size;
+        // collect the tokens of chunks c0..c1 as they are after the change
+        Builder run = new Builder(runEnd - runFirst - (to - from) + replacement.size);
+        for (int c = c0; c <= c1; c++) {
+            Chunk chunk = chunk(c);
+            int cFirst = first(c);
+            int base = base(c);
+            int i0 = Math.max(0, Math.min(from, cFirst + chunk.size) - cFirst);
+            run.addChunk(chunk, 0, i0, base);
+        }
+        run.addAll(replacement);
+        for (int c = c0; c <= c1; c++) {
+            Chunk chunk = chunk(c);
+            int cFirst = first(c);
+            int i1 = Math.max(0, Math.min(to - cFirst, chunk.size));
+            run.addChunk(chunk, i1, chunk.size, base(c) + delta);
+        }
+        int countDelta = run.size - (runEnd - runFirst);
+        if (c0 == c1 && run.size > 0 && run.size <= 2 * CHUNK_SIZE) {
+            // the common case: the change stays within one chunk
+            int base = base(c0);
+            Chunk chunk = run.toChunk(0, run.size, base);
+            boolean sameChunk = (editIndex < 0 || editIndex == c0) &&
+                    (shiftChunk == c0 + 1 || (shiftOffset == 0 && shiftCount == 0));
+            if (sameChunk) {
+                return new TokenBuffer(chunks, bases, firsts, chunkCount,
+                        c0 + 1, shiftOffset + delta, shiftCount + countDelta,
+                        c0, chunk, size + countDelta);
+            }
+            TokenBuffer folded = fold();
+            return new TokenBuffer(folded.chunks, folded.bases, folded.firsts, chunkCount,
+                    c0 + 1, delta, countDelta, c0, chunk, size + countDelta);
+        }
+        // rebuild the chunk arrays, splitting the changed run in new chunks
+        int runChunks = (run.size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int count = chunkCount - (c1 - c0 + 1) + runChunks;
+        Chunk[] newChunks = new Chunk[Math.max(count, 1)];
+        int[] newBases = new int[newChunks.length];
+        int[] newFirsts = new int[newChunks.length];
+        for (int c = 0; c < c0; c++) {
+            newChunks[c] = chunk(c);
+            newBases[c] = base(c);
+            newFirsts[c] = first(c);
+        }
+        int n = c0;
+        for (int i = 0; i < run.size; i += CHUNK_SIZE, n++) {
+            int base = run.starts[i];
+            newChunks[n] = run.toChunk(i, Math.min(i + CHUNK_SIZE, run.size), base);
+            newBases[n] = base;
+            newFirsts[n] = runFirst + i;
+        }
+        for (int c = c1 + 1; c < chunkCount; c++, n++) {
+            newChunks[n] = chunk(c);
+            newBases[n] = base(c) + delta;
+            newFirsts[n] = first(c) + countDelta;
+        }
+        return new TokenBuffer(newChunks, newBases, newFirsts, count,
+                count, 0, 0, -1, null, size + countDelta);
+    }
+
+    /**
+     * Return a buffer with the same tokens, with the pending shift and
+     * edited chunk folded in unshared arrays
+     */
+    private TokenBuffer fold() {
+        Chunk[] newChunks = new Chunk[chunks.length];
+        int[] newBases = new int[chunks.length];
+        int[] newFirsts = new int[chunks.length];
+        for (int c = 0; c < chunkCount; c++) {
+            newChunks[c] = chunk(c);
+            newBases[c] = base(c);
+            newFirsts[c] = first(c);
+        }
+        return new TokenBuffer(newChunks, newBases, newFirsts, chunkCount,
+                chunkCount, 0, 0, -1, null, size);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBuffer(" + size + " tokens in " + chunkCount + " chunks)";
+    }
+
+    /**
+     * Builds a TokenBuffer by appending tokens in document order.
+     */
+    public static final class Builder {
+
+        private int[] starts;
+        private int[] lengths;
+        private byte[] types;
+        private byte[] pairValues;
+        private int[] hashes;
+        private int size;
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            starts = new int[capacity];
+            lengths = new int[capacity];
+            types = new byte[capacity];
+            pairValues = new byte[capacity];
+            hashes = new int[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void add(TokenType type, int start, int length, byte pairValue) {
+            add(type, start, length, pairValue, 0);
+        }
+
+        public void add(TokenType type, int start, int length, byte pairValue, int hash) {
+            ensureCapacity(size + 1);
+            starts[size] = start;
+            lengths[size] = length;
+            types[size] = (byte) type.ordinal();
+            pairValues[size] = pairValue;
+            hashes[size] = hash;
+            size++;
+        }
+
+        public void add(Token token) {
+            add(token.type, token.start, token.length, token.pairValue);
+        }
+
+        private void addAll(Builder builder) {
+            ensureCapacity(size + builder.size);
+            System.arraycopy(builder.starts, 0, starts, size, builder.size);
+            System.arraycopy(builder.lengths, 0, lengths, size, builder.size);
+            System.arraycopy(builder.types, 0, types, size, builder.size);
+            System.arraycopy(builder.pairValues, 0, pairValues, size, builder.size);
+            System.arraycopy(builder.hashes, 0, hashes, size, builder.size);
+            size += builder.size;
+        }
+
+        /**
+         * Append the tokens [from, to) of chunk, with starts relative to base
+         */
+        private void addChunk(Chunk chunk, int from, int to, int base) {
+            int count = to - from;
+            if (count <= 0) {
+                return;
+            }
+            ensureCapacity(size + count);
+            for (int i = 0; i < count; i++) {
+                starts[size + i] = chunk.starts[from + i] + base;
+            }
+            System.arraycopy(chunk.lengths, from, lengths, size, count);
+            System.arraycopy(chunk.types, from, types, size, count);
+            System.arraycopy(chunk.pairValues, from, pairValues, size, count);
+            System.arraycopy(chunk.hashes, from, hashes, size, count);
+            size += count;
+        }
+
+        /**
+         * Return a chunk of the tokens [from, to), relative to base
+         */
+        private Chunk toChunk(int from, int to, int base) {
+            int count = to - from;
+            int[] s = new int[count];
+            for (int i = 0; i < count; i++) {
+                s[i] = starts[from + i] - base;
+            }
+            return new Chunk(s, Arrays.copyOfRange(lengths, from, to),
+                    Arrays.copyOfRange(types, from, to),
+                    Arrays.copyOfRange(pairValues, from, to),
+                    Arrays.copyOfRange(hashes, from, to), count);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > starts.length) {
+                capacity = Math.max(capacity, starts.length * 3 / 2);
+                starts = Arrays.copyOf(starts, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                types = Arrays.copyOf(types, capacity);
+                pairValues = Arrays.copyOf(pairValues, capacity);
+                hashes = Arrays.copyOf(hashes, capacity);
+            }
+        }
+
+        /**
+         * Return a buffer of the tokens added so far
+         * @return new TokenBuffer
+         */
+        public TokenBuffer build() {
+            int count = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            Chunk[] chunks = new Chunk[Math.max(count, 1)];
+            int[] bases = new int[chunks.length];
+            int[] firsts = new int[chunks.length];
+            for (int c = 0; c < count; c++) {
+                int from = c * CHUNK_SIZE;
+                bases[c] = starts[from];
+                firsts[c] = from;
+                chunks[c] = toChunk(from, Math.min(from + CHUNK_SIZE, size), bases[c]);
+            }
+            return new TokenBuffer(chunks, bases, firsts, count,
+                    count, 0, 0, -1, null, size);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import javax.swing.event.ChangeEvent;
+
+/**
+ * Tells the token listeners of a {@link SyntaxDocument} which text has
+ * tokens that changed, so only that text has to be painted again.  Opening
+ * a comment changes the tokens up to where it ends, or the end of the text.
+ */
+public class TokenChangeEvent extends ChangeEvent {
+
+    private final int start;
+    private final int end;
+
+    public TokenChangeEvent(Object source, int start, int end) {
+        super(source);
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @return the start of the text whose tokens changed
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return the end of the text whose tokens changed, equal to the start
+     * if none did
+     */
+    public int getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of the Tokens of a SyntaxDocument, as lexed from one
+ * version of its text.  The document publishes a new snapshot whenever it
+ * finishes lexing a change, so a snapshot can be read from any thread
+ * without locking.  Token offsets are those of the version the snapshot
+ * was made from.
+ */
+public final class TokenSnapshot {
+
+    /**
+     * Value of {@link #getLexedEnd()} when the whole text was lexed
+     */
+    public static final int COMPLETE = Integer.MAX_VALUE;
+    static final TokenSnapshot EMPTY = new TokenSnapshot(TokenBuffer.EMPTY, 0, COMPLETE);
+    private final TokenBuffer buffer;
+    private final int version;
+    private final int lexedEnd;
+
+    TokenSnapshot(TokenBuffer buffer, int version, int lexedEnd) {
+        this.buffer = buffer;
+        this.version = version;
+        this.lexedEnd = lexedEnd;
+    }
+
+    /**
+     * Return the version of the document text these tokens were lexed from.
+     * The version is incremented by every insert and remove.
+     * @return document version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Return the offset the text was lexed up to.  Large documents are lexed
+     * a part at a time, so the text from this offset on may not have any
+     * tokens yet.
+     * @return end of the lexed text, or COMPLETE
+     */
+    public int getLexedEnd() {
+        return lexedEnd;
+    }
+
+    /**
+     * @return true if the whole text was lexed
+     */
+    public boolean isComplete() {
+        return lexedEnd == COMPLETE;
+    }
+
+    /**
+     * @return the tokens, in document order
+     */
+    public TokenBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Return the tokens as a List.  The list cannot be modified, and creates
+     * the Token objects as they are asked for.
+     * @return list of the tokens, in document order
+     */
+    public List<Token> getTokens() {
+        return new TokenList();
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    public Token get(int index) {
+        return buffer.getToken(index);
+    }
+
+    /**
+     * Return the index of the other part of the paired token at index, or -1
+     * if the token is not paired or its partner is missing.  See
+     * {@link TokenBuffer#findPartner(int)}
+     * @param index
+     * @return index of the partner token, or -1
+     */
+    public int getPartner(int index) {
+        return buffer.findPartner(index);
+    }
+
+    @Override
+    public String toString() {
+        return "TokenSnapshot(" + buffer.size() + " tokens, version " + version +
+                (isComplete() ? ")" : ", lexed to " + lexedEnd + ")");
+    }
+
+    private class TokenList extends AbstractList<Token> implements RandomAccess {
+
+        @Override
+        public Token get(int index) {
+            if (index < 0 || index >= buffer.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return buffer.getToken(index);
+        }
+
+        @Override
+        public int size() {
+            return buffer.size();
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jsyntaxpane.util.TextHash;
+
+/**
+ * An undo history of a file kept on the disk, so it outlives the editor.
+ *
+ * The journal is a file that every change of the text is appended to, with
+ * the text it inserted or removed.  The changes made less than
+ * IDLE_DELAY_MS apart are one step.  Each save of the file adds a mark with
+ * the {@link TextHash} of the text saved.  When the file is opened again,
+ * and its text has the hash of the last mark, the steps before that mark
+ * lead to the text of the file: they can be undone one at a time, read from
+ * the disk as they are needed.  Otherwise the journal is started again.
+ *
+ * Changes are added to a buffer, which is written out by a single thread
+ * FLUSH_DELAY_MS after the first change in it.  A change that cannot be
+ * kept adds a break, and the steps before it cannot be undone.
+ *
+ * The journals of the files not edited for a while are deleted by
+ * {@link #prune(File, long, long)}.
+ *
+ * See {@link SyntaxDocument#setUndoJournal(UndoJournal)}.
+ */
+public class UndoJournal {
+
+    /**
+     * Delay between the first change added to the buffer and the write
+     */
+    public static final int FLUSH_DELAY_MS = 1000;
+    /**
+     * The size a journal is cut down to half of when it is opened, unless
+     * given to open()
+     */
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+    static final byte STEP = 1;
+    static final byte SAVE = 2;
+    static final byte BREAK = 3;
+    static final byte INSERT = 1;
+    static final byte REMOVE = 2;
+    private static final Logger log = Logger.getLogger(UndoJournal.class.getName());
+    private static final ScheduledExecutorService WRITE_THREAD =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "UndoJournal");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    /**
+     * The journals open in this editor, which prune() keeps
+     */
+    private static final Set<File> OPEN = new HashSet<File>();
+    private final File file;
+    private final FileOutputStream out;
+    private final RandomAccessFile in;
+    /**
+     * Positions of the steps that can be undone, oldest first
+     */
+    private final long[] steps;
+    /**
+     * The number of the steps that are applied to the text
+     */
+    private int cursor;
+    private int stepCount;
+    private final ByteArrayOutputStream step = new ByteArrayOutputStream();
+    private final DataOutputStream stepOut = new DataOutputStream(step);
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private long lastChangeMillis;
+    private boolean flushQueued;
+    private boolean failed;
+    private boolean closed;
+
+    private UndoJournal(File file, long[] steps) throws IOException {
+        this.file = file;
+        this.steps = steps;
+        this.stepCount = steps.length;
+        this.cursor = steps.length;
+        this.out = new FileOutputStream(file, true);
+        this.in = new RandomAccessFile(file, "r");
+        synchronized (OPEN) {
+            OPEN.add(file.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * @return the journal file in the given directory for the given file
+     */
+    public static File getJournalFile(File dir, File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        TextHash hash = new TextHash();
+        hash.update(path);
+        return new File(dir, Long.toHexString(hash.getValue()) + ".journal");
+    }
+
+    /**
+     * Open the journal of a file, which has the text of the given hash.  If
+     * the last save in the journal has another hash, the journal is started
+     * again.  Does disk IO, so should not be called on the EDT.
+     * @param file the journal file
+     * @param textHash {@link TextHash} of the text of the file
+     * @param maxSize journals larger than this are cut down to half of it
+     */
+    public static UndoJournal open(File file, long textHash, long maxSize) throws IOException {
+        if (!file.isFile()) {
+            return create(file, textHash);
+        }
+        List<Long> found = new ArrayList<Long>();
+        int first = 0;
+        long pos = 0;
+        int savedFirst = 0;
+        int savedCount = -1;
+        long savedStart = 0;
+        long savedEnd = 0;
+        long savedHash = 0;
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte type = data.readByte();
+                int length = data.readInt();
+                if (type < STEP || type > BREAK || length < 0 || (type == SAVE && length != 8)) {
+                    // not a record, so the rest cannot be trusted
+                    break;
+                }
+                long hash = (type == SAVE) ? data.readLong() : 0;
+                if (type != SAVE) {
+                    skipFully(data, length);
+                }
+                long start = pos;
+                pos += 5 + length;
+                if (type == STEP) {
+                    found.add(start);
+                } else if (type == BREAK) {
+                    first = found.size();
+                } else if (type == SAVE) {
+                    savedHash = hash;
+                    savedFirst = first;
+                    savedCount = found.size();
+                    savedStart = start;
+                    savedEnd = pos;
+                }
+            }
+        } catch (EOFException ex) {
+            // the end of the records
+        } finally {
+            data.close();
+        }
+        if (savedCount < 0 || savedHash != textHash) {
+            return create(file, textHash);
+        }
+        // the steps after the last save were not saved
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(savedEnd);
+        } finally {
+            raf.close();
+        }
+        long keep = 0;
+        if (savedEnd > maxSize) {
+            while (savedFirst < savedCount && savedEnd - found.get(savedFirst) > maxSize / 2) {
+                savedFirst++;
+            }
+            keep = (savedFirst < savedCount) ? found.get(savedFirst) : savedStart;
+            cut(file, keep);
+        }
+        long[] steps = new long[savedCount - savedFirst];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = found.get(savedFirst + i) - keep;
+        }
+        return new UndoJournal(file, steps);
+    }
+
+    /**
+     * Start the journal of a file again, with no steps to undo
+     * @param file the journal file
+     * @param textHash {@link TextHash} of the text of the file
+     */
+    public static UndoJournal create(File file, long textHash) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        DataOutputStream data = new DataOutputStream(new FileOutputStream(file));
+        try {
+            writeSave(data, textHash);
+        } finally {
+            data.close();
+        }
+        return new UndoJournal(file, new long[0]);
+    }
+
+    /**
+     * Delete the journals in the directory not written to for maxAge
+     * milliseconds, then the ones written to least recently until all of
+     * them use no more than maxTotalSize bytes.  The journals open are kept.
+     * Does disk IO, so should not be called on the EDT.
+     * @param dir the directory of the journals
+     * @param maxAge milliseconds, or 0 to keep journals of any age
+     * @param maxTotalSize bytes, or 0 for no limit
+     */
+    public static void prune(File dir, long maxAge, long maxTotalSize) {
+        File[] journals = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(".journal");
+            }
+        });
+        if (journals == null) {
+            return;
+        }
+        Arrays.sort(journals, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(b.lastModified()).compareTo(a.lastModified());
+            }
+        });
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File f : journals) {
+            boolean open;
+            synchronized (OPEN) {
+                open = OPEN.contains(f.getAbsoluteFile());
+            }
+            if (open || ((maxAge <= 0 || now - f.lastModified() <= maxAge) &&
+                    (maxTotalSize <= 0 || total + f.length() <= maxTotalSize))) {
+                total += f.length();
+            } else {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Skip length bytes, or throw EOFException if the stream ends before
+     */
+    private static void skipFully(DataInputStream data, int length) throws IOException {
+        while (length > 0) {
+            int n = data.skipBytes(length);
+            if (n == 0) {
+                data.readByte();
+                n = 1;
+            }
+            length -= n;
+        }
+    }
+
+    /**
+     * Drop the records before the given position of the file
+     */
+    private static void cut(File file, long from) throws IOException {
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+        RandomAccessFile src = new RandomAccessFile(file, "r");
+        FileOutputStream dst = new FileOutputStream(temp);
+        try {
+            src.seek(from);
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = src.read(buffer)) > 0) {
+                dst.write(buffer, 0, n);
+            }
+        } finally {
+            src.close();
+            dst.close();
+        }
+        if (!file.delete() || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    private static void writeSave(DataOutputStream data, long textHash) throws IOException {
+        data.writeByte(SAVE);
+        data.writeInt(8);
+        data.writeLong(textHash);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Add an insert to the current step
+     */
+    public synchronized void inserted(int offset, String text) {
+        addChange(INSERT, offset, text);
+    }
+
+    /**
+     * Add a remove to the current step
+     */
+    public synchronized void removed(int offset, String text) {
+        addChange(REMOVE, offset, text);
+    }
+
+    private void addChange(byte type, int offset, String text) {
+        long now = System.currentTimeMillis();
+        if (now - lastChangeMillis > CompoundUndoManager.IDLE_DELAY_MS) {
+            endStep();
+        }
+        lastChangeMillis = now;
+        try {
+            stepOut.writeByte(type);
+            stepOut.writeInt(offset);
+            stepOut.writeInt(text.length());
+            stepOut.writeChars(text);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        queueFlush();
+    }
+
+    /**
+     * A change of the text was not added, so the steps before it cannot be
+     * undone any more
+     */
+    public synchronized void lost() {
+        endStep();
+        try {
+            pendingOut.writeByte(BREAK);
+            pendingOut.writeInt(0);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        cursor = 0;
+        stepCount = 0;
+        queueFlush();
+    }
+
+    /**
+     * The changes added after this are a step of their own
+     */
+    public synchronized void endStep() {
+        if (step.size() > 0) {
+            try {
+                pendingOut.writeByte(STEP);
+                pendingOut.writeInt(step.size());
+                step.writeTo(pendingOut);
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, null, ex);
+            }
+            step.reset();
+        }
+    }
+
+    /**
+     * Mark that the text was saved
+     * @param textHash {@link TextHash} of the text saved
+     */
+    public synchronized void saved(long textHash) {
+        endStep();
+        try {
+            writeSave(pendingOut, textHash);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+        queueFlush();
+    }
+
+    private void queueFlush() {
+        if (!flushQueued && !closed) {
+            flushQueued = true;
+            WRITE_THREAD.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write out the buffer, with the current step if it has ended.  Runs on
+     * the write thread.
+     */
+    private void flush() {
+        byte[] bytes;
+        synchronized (this) {
+            flushQueued = false;
+            if (System.currentTimeMillis() - lastChangeMillis > CompoundUndoManager.IDLE_DELAY_MS) {
+                endStep();
+            }
+            if (step.size() > 0) {
+                queueFlush();
+            }
+            if (pending.size() == 0 || failed) {
+                return;
+            }
+            bytes = pending.toByteArray();
+            pending.reset();
+        }
+        try {
+            out.write(bytes);
+        } catch (IOException ex) {
+            // the changes after a gap would not lead to the text saved
+            log.log(Level.SEVERE, null, ex);
+            synchronized (this) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if there is a step before the text to undo
+     */
+    public synchronized boolean canUndo() {
+        return cursor > 0;
+    }
+
+    /**
+     * @return true if there is an undone step to redo
+     */
+    public synchronized boolean canRedo() {
+        return cursor < stepCount;
+    }
+
+    /**
+     * Read the last step applied, to undo it.  The changes of the step are
+     * to be undone last to first.
+     */
+    public synchronized List<Change> undo() throws IOException {
+        List<Change> changes = readStep(steps[cursor - 1]);
+        cursor--;
+        return changes;
+    }
+
+    /**
+     * Read the next step undone, to redo it.  The changes of the step are to
+     * be made first to last.
+     */
+    public synchronized List<Change> redo() throws IOException {
+        List<Change> changes = readStep(steps[cursor]);
+        cursor++;
+        return changes;
+    }
+
+    /**
+     * The text no longer follows from the steps: none can be undone or
+     * redone.  The changes are still added.
+     */
+    public synchronized void discard() {
+        cursor = 0;
+        stepCount = 0;
+    }
+
+    private List<Change> readStep(long pos) throws IOException {
+        in.seek(pos);
+        if (in.readByte() != STEP) {
+            throw new IOException("No step at " + pos + " of " + file);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<Change> changes = new ArrayList<Change>();
+        while (data.available() > 0) {
+            byte type = data.readByte();
+            int offset = data.readInt();
+            char[] text = new char[data.readInt()];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = data.readChar();
+            }
+            changes.add(new Change(type == INSERT, offset, new String(text)));
+        }
+        return changes;
+    }
+
+    /**
+     * Write out what was added, and close the journal.  Waits for the write.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            endStep();
+            closed = true;
+        }
+        synchronized (OPEN) {
+            OPEN.remove(file.getAbsoluteFile());
+        }
+        Future<?> done = WRITE_THREAD.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+                try {
+                    out.close();
+                    in.close();
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } catch (ExecutionException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * An insert or remove of a step
+     */
+    public static class Change {
+
+        public final boolean insert;
+        public final int offset;
+        public final String text;
+
+        Change(boolean insert, int offset, String text) {
+            this.insert = insert;
+            this.offset = offset;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return (insert ? "insert " : "remove ") + offset + " " + text.length();
+        }
+    }
+}
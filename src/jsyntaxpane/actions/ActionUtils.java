@@ -16,7 +16,6 @@ package jsyntaxpane.actions;
 import java.awt.Component;
 import java.awt.Frame;
 import java.awt.Point;
-import java.awt.Rectangle;
 import java.awt.Window;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,6 +24,7 @@ import javax.swing.MutableComboBoxModel;
 import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
 import javax.swing.text.PlainDocument;
 import jsyntaxpane.SyntaxDocument;
@@ -178,6 +178,30 @@ public class ActionUtils {
         }
     }
 
+    /**
+     * Start an edit transaction on the document of the component, if it is
+     * a SyntaxDocument.  Every call must be matched by a call to
+     * {@link #endEdit(JTextComponent)} in a finally block.
+     * @param component
+     */
+    public static void beginEdit(JTextComponent component) {
+        SyntaxDocument sDoc = getSyntaxDocument(component);
+        if (sDoc != null) {
+            sDoc.beginEdit();
+        }
+    }
+
+    /**
+     * End the edit transaction started by {@link #beginEdit(JTextComponent)}
+     * @param component
+     */
+    public static void endEdit(JTextComponent component) {
+        SyntaxDocument sDoc = getSyntaxDocument(component);
+        if (sDoc != null) {
+            sDoc.endEdit();
+        }
+    }
+
     /**
      * Gets the Line Number at the give position of the editor component.
      * The first line number is ZERO
@@ -207,9 +231,12 @@ public class ActionUtils {
      */
     public static int getColumnNumber(JTextComponent editor, int pos)
             throws BadLocationException {
-        Rectangle r = editor.modelToView(pos);
-        int start = editor.viewToModel(new Point(0, r.y));
-        int column = pos - start;
+        Document doc = editor.getDocument();
+        if (pos < 0 || pos > doc.getLength()) {
+            throw new BadLocationException("Invalid position", pos);
+        }
+        Element root = doc.getDefaultRootElement();
+        int column = pos - root.getElement(root.getElementIndex(pos)).getStartOffset();
         return column;
     }
 
@@ -36,14 +36,17 @@ public class DuplicateLinesAction extends TextAction implements SyntaxAction {
     public void actionPerformed(ActionEvent e) {
         JTextComponent target = getTextComponent(e);
         if (target != null) {
+            SyntaxDocument sDoc = (SyntaxDocument) target.getDocument();
+            sDoc.beginEdit();
             try {
-                SyntaxDocument sDoc = (SyntaxDocument) target.getDocument();
                 int st = sDoc.getLineStartOffset(target.getSelectionStart());
                 int en = sDoc.getLineEndOffset(target.getSelectionEnd());
                 String dupLines = sDoc.getText(st, en-st);
                 sDoc.insertString(st, dupLines, null);
             } catch (BadLocationException ex) {
                 Logger.getLogger(DuplicateLinesAction.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                sDoc.endEdit();
             }
         }
     }
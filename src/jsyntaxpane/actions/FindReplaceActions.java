@@ -177,7 +177,12 @@ public class FindReplaceActions implements SyntaxAction {
         }
         Matcher matcher = sDoc.getMatcher(pattern);
         String newText = matcher.replaceAll(replacement);
-        target.setText(newText);
+        sDoc.beginEdit();
+        try {
+            target.setText(newText);
+        } finally {
+            sDoc.endEdit();
+        }
     }
 
     // - Getters and setters -------------------------------------------------
@@ -53,8 +53,13 @@ public class IndentAction extends DefaultEditorKit.InsertTabAction
                     sb.append(line);
                     sb.append('\n');
                 }
-                target.replaceSelection(sb.toString());
-                target.select(start, start + sb.length());
+                ActionUtils.beginEdit(target);
+                try {
+                    target.replaceSelection(sb.toString());
+                    target.select(start, start + sb.length());
+                } finally {
+                    ActionUtils.endEdit(target);
+                }
             }
         }
     }
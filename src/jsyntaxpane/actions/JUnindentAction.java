@@ -43,8 +43,11 @@ public class JUnindentAction extends TextAction implements SyntaxAction {
             int start = sDoc.getParagraphElement(pos).getStartOffset();
             String line = ActionUtils.getLine(target);
             if (ActionUtils.isEmptyOrBlanks(line)) {
+                sDoc.beginEdit();
                 try {
                     sDoc.insertString(pos, "}", null);
+                    // the pair lookup needs the token just typed
+                    sDoc.updateTokens(pos + 1);
                     Token t = sDoc.getPairFor(sDoc.getTokenAt(pos));
                     if (null != t) {
                         String pairLine = ActionUtils.getLineAt(target, t.start);
@@ -53,6 +56,8 @@ public class JUnindentAction extends TextAction implements SyntaxAction {
                     }
                 } catch (BadLocationException ble) {
                     target.replaceSelection("}");
+                } finally {
+                    sDoc.endEdit();
                 }
             } else {
                 target.replaceSelection("}");
@@ -61,7 +61,12 @@ public class ToggleCommentsAction extends TextAction implements SyntaxAction {
                 }
                 toggled.append('\n');
             }
-            target.replaceSelection(toggled.toString());
+            ActionUtils.beginEdit(target);
+            try {
+                target.replaceSelection(toggled.toString());
+            } finally {
+                ActionUtils.endEdit(target);
+            }
         }
     }
 
@@ -48,8 +48,13 @@ public class UnindentAction extends TextAction implements SyntaxAction {
                 }
                 sb.append('\n');
             }
-            target.replaceSelection(sb.toString());
-            target.select(start, start + sb.length());
+            ActionUtils.beginEdit(target);
+            try {
+                target.replaceSelection(sb.toString());
+                target.select(start, start + sb.length());
+            } finally {
+                ActionUtils.endEdit(target);
+            }
         }
     }
 
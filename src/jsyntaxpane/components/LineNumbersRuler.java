@@ -196,11 +196,24 @@ public class LineNumbersRuler extends JComponent
     }
 
     public void insertUpdate(DocumentEvent e) {
-        updateSize();
+        if (!isEditing(e)) {
+            updateSize();
+        }
     }
 
     public void removeUpdate(DocumentEvent e) {
-        updateSize();
+        if (!isEditing(e)) {
+            updateSize();
+        }
+    }
+
+    /**
+     * An edit transaction fires a changedUpdate when it ends, so there is no
+     * need to update for each of its changes
+     */
+    private boolean isEditing(DocumentEvent e) {
+        return e.getDocument() instanceof SyntaxDocument &&
+                ((SyntaxDocument) e.getDocument()).isEditing();
     }
 
     public void changedUpdate(DocumentEvent e) {
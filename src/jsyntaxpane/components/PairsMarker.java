@@ -14,10 +14,14 @@
 package jsyntaxpane.components;
 
 import java.awt.Color;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import jsyntaxpane.actions.*;
 import javax.swing.JEditorPane;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.text.JTextComponent;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.Token;
@@ -27,9 +31,13 @@ import jsyntaxpane.util.Configuration;
  * This class highlights any pairs of the given language.  Pairs are defined
  * with the Token.pairValue.
  *
+ * The pairs are marked again whenever the document has lexed a change, so
+ * a pair typed at the caret is marked once its tokens are known.
+ *
  * @author Ayman Al-Sairafi
  */
-public class PairsMarker implements CaretListener, SyntaxComponent {
+public class PairsMarker implements CaretListener, ChangeListener,
+        PropertyChangeListener, SyntaxComponent {
     public static final String PROPERTY_COLOR = "PairMarker.Color";
 
     private JTextComponent pane;
@@ -40,8 +48,26 @@ public class PairsMarker implements CaretListener, SyntaxComponent {
 
     @Override
     public void caretUpdate(CaretEvent e) {
+        markPairs(e.getDot());
+    }
+
+    @Override
+    public void stateChanged(ChangeEvent e) {
+        markPairs(pane.getCaretPosition());
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (evt.getOldValue() instanceof SyntaxDocument) {
+            ((SyntaxDocument) evt.getOldValue()).removeTokenChangeListener(this);
+        }
+        if (evt.getNewValue() instanceof SyntaxDocument) {
+            ((SyntaxDocument) evt.getNewValue()).addTokenChangeListener(this);
+        }
+    }
+
+    private void markPairs(int pos) {
         removeMarkers();
-        int pos = e.getDot();
         SyntaxDocument doc = ActionUtils.getSyntaxDocument(pane);
         Token token = doc.getTokenAt(pos);
         if (token != null && token.pairValue != 0) {
@@ -71,10 +97,18 @@ public class PairsMarker implements CaretListener, SyntaxComponent {
     public void install(JEditorPane editor) {
         pane = editor;
         pane.addCaretListener(this);
+        pane.addPropertyChangeListener("document", this);
+        if (pane.getDocument() instanceof SyntaxDocument) {
+            ((SyntaxDocument) pane.getDocument()).addTokenChangeListener(this);
+        }
     }
 
     public void deinstall(JEditorPane editor) {
         pane.removeCaretListener(this);
+        pane.removePropertyChangeListener("document", this);
+        if (pane.getDocument() instanceof SyntaxDocument) {
+            ((SyntaxDocument) pane.getDocument()).removeTokenChangeListener(this);
+        }
         removeMarkers();
     }
 }
@@ -16,7 +16,6 @@ package jsyntaxpane.components;
 import jsyntaxpane.actions.*;
 import java.awt.Color;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.logging.Logger;
 import javax.swing.JEditorPane;
@@ -74,15 +73,13 @@ public class TokenMarker implements SyntaxComponent, CaretListener {
     void addMarkers(Token tok) {
         SyntaxDocument sDoc = (SyntaxDocument) pane.getDocument();
         sDoc.readLock();
-        String text = tok.getText(sDoc).toLowerCase();
-        Iterator<Token> it = sDoc.getTokens(0, sDoc.getLength());
-        while (it.hasNext()) {
-            Token nextToken = it.next();
-            if (nextToken.length == tok.length && text.equals(nextToken.getText(sDoc).toLowerCase())) {
+        try {
+            for (Token nextToken : sDoc.getOccurrences(tok)) {
                 Markers.markToken(pane, nextToken, marker);
             }
+        } finally {
+            sDoc.readUnlock();
         }
-        sDoc.readUnlock();
     }
 
     @Override
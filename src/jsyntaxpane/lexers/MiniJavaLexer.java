@@ -363,6 +363,16 @@ public final class MiniJavaLexer extends DefaultLexer {
   /** zzAtEOF == true <=> the scanner is at the EOF */
   private boolean zzAtEOF;
 
+  /**
+   * offset just past the furthest character examined by the last call 
+   * to the scanning method, see jsyntaxpane.Lexer.yylookahead()
+   */
+  private int zzLookahead;
+
+  /** the buffer of the Reader input, put aside while zzBuffer is the
+      array of a Segment */
+  private char zzReaderBuffer[];
+
   /* user code: */
     /**
      * Create an empty lexer, yyrset will be called later to reset and assign
@@ -493,6 +503,10 @@ public final class MiniJavaLexer extends DefaultLexer {
    * @param reader   the new input stream 
    */
   public final void yyreset(java.io.Reader reader) {
+    if (zzReaderBuffer != null) {
+      zzBuffer = zzReaderBuffer;
+      zzReaderBuffer = null;
+    }
     zzReader = reader;
     zzAtBOL  = true;
     zzAtEOF  = false;
@@ -503,6 +517,53 @@ public final class MiniJavaLexer extends DefaultLexer {
   }
 
 
+  /**
+   * Resets the scanner to read from a new input stream, as the text
+   * starting at the given offset, in the given lexical state.
+   *
+   * @param reader   the new input stream 
+   * @param offset   the offset of the first character of reader
+   * @param state    the lexical state to start in
+   */
+  public final void yyreset(java.io.Reader reader, int offset, int state) {
+    yyreset(reader);
+    yychar = offset;
+    yybegin(state);
+  }
+
+
+  /**
+   * Resets the scanner to scan the text of a Segment in place, as the
+   * text starting at the given offset, in the given lexical state.
+   * Nothing is copied and there is nothing to refill.  The array of the
+   * segment is referenced until the next reset.
+   *
+   * @param text     the text to scan
+   * @param offset   the offset of the first character of text
+   * @param state    the lexical state to start in
+   */
+  public final void yyreset(javax.swing.text.Segment text, int offset, int state) {
+    yyreset((java.io.Reader) null);
+    zzReaderBuffer = zzBuffer;
+    zzBuffer = text.array;
+    zzStartRead = zzCurrentPos = zzMarkedPos = zzPushbackPos = text.offset;
+    zzEndRead = text.offset + text.count;
+    zzAtEOF = true;
+    yychar = offset;
+    yybegin(state);
+  }
+
+
+  /**
+   * Returns the offset just past the furthest character examined by the
+   * last call to the scanning method, the end of input counting as one
+   * character.
+   */
+  public final int yylookahead() {
+    return zzLookahead;
+  }
+
+
   /**
    * Returns the current lexical state.
    */
@@ -618,6 +679,8 @@ public final class MiniJavaLexer extends DefaultLexer {
     int [] zzRowMapL = ZZ_ROWMAP;
     int [] zzAttrL = ZZ_ATTRIBUTE;
 
+    zzLookahead = 0;
+
     while (true) {
       zzMarkedPosL = zzMarkedPos;
 
@@ -674,6 +737,11 @@ public final class MiniJavaLexer extends DefaultLexer {
       // store back cached position
       zzMarkedPos = zzMarkedPosL;
 
+      // remember how far ahead this match looked, end of input included
+      int zzReach = yychar + zzCurrentPosL - zzStartRead;
+      if (zzInput == YYEOF) zzReach++;
+      if (zzReach > zzLookahead) zzLookahead = zzReach;
+
       switch (zzAction < 0 ? zzAction : ZZ_ACTION[zzAction]) {
         case 12: 
           { return token(TokenType.KEYWORD);
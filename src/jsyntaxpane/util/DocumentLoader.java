@@ -0,0 +1,192 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import jsyntaxpane.SyntaxDocument;
+
+/**
+ * Reads a file into a Document on a background thread.
+ *
+ * The file is read through a FileChannel a large block at a time, and each
+ * block is decoded in one go into a single array for the whole text, which
+ * is then inserted into the document at once.  A SyntaxDocument on a
+ * {@link jsyntaxpane.PieceTableContent} keeps that array as its text, so
+ * the file is not copied again.  The document should not be shown while it
+ * is loaded, so no editor has to follow the insert: show it in done() once
+ * get() returns.  Line ends are converted to \n, and the one the file used
+ * is kept in the EndOfLineStringProperty, like DefaultEditorKit.read() does.
+ *
+ * The progress property goes from 0 to 100 as the file is read.  The loader
+ * stops at the next block when it is cancelled, leaving the document empty.
+ */
+public class DocumentLoader extends SwingWorker<Document, Void> {
+
+    /**
+     * Number of bytes read at a time
+     */
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private final File file;
+    private final Document document;
+    private final CharsetDecoder decoder;
+    private volatile long textHash;
+
+    /**
+     * Create a loader for the given file.  Call execute() to start it.
+     * @param file file to read
+     * @param document empty document to read the file into
+     * @param charset encoding of the file
+     */
+    public DocumentLoader(File file, Document document, Charset charset) {
+        this.file = file;
+        this.document = document;
+        this.decoder = charset.newDecoder().
+                onMalformedInput(CodingErrorAction.REPLACE).
+                onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the {@link TextHash} of the text read, once it is read
+     */
+    public long getTextHash() {
+        return textHash;
+    }
+
+    @Override
+    protected Document doInBackground() throws IOException, BadLocationException {
+        FileInputStream in = new FileInputStream(file);
+        CharBuffer chars;
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long read = 0;
+            ByteBuffer bytes = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            chars = CharBuffer.allocate((int) Math.min(
+                    size * decoder.maxCharsPerByte() + 1, Integer.MAX_VALUE - 8));
+            decoder.reset();
+            boolean eof = false;
+            while (!eof) {
+                if (isCancelled()) {
+                    return document;
+                }
+                int n = channel.read(bytes);
+                eof = (n < 0);
+                if (n > 0) {
+                    read += n;
+                }
+                bytes.flip();
+                // the file may have grown since its size was read
+                while (decoder.decode(bytes, chars, eof).isOverflow()) {
+                    chars = grow(chars);
+                }
+                bytes.compact();
+                if (eof) {
+                    while (decoder.flush(chars).isOverflow()) {
+                        chars = grow(chars);
+                    }
+                }
+                setProgress((size == 0) ? 100 : (int) (Math.min(read, size) * 100 / size));
+            }
+        } finally {
+            in.close();
+        }
+        char[] text = chars.array();
+        int length = convertLineEnds(text, chars.position());
+        TextHash hash = new TextHash();
+        hash.update(text, 0, length);
+        textHash = hash.getValue();
+        insertText(text, length);
+        return document;
+    }
+
+    /**
+     * Insert the first length chars of text, the text read, at the end of
+     * the document.  This is called on the background thread, and can be
+     * overridden to take the text somewhere else: the loader does not use
+     * the array afterwards.
+     * @param text
+     * @param length
+     * @throws BadLocationException
+     */
+    protected void insertText(char[] text, int length) throws BadLocationException {
+        if (document instanceof SyntaxDocument) {
+            ((SyntaxDocument) document).insertText(document.getLength(), text, length);
+        } else {
+            document.insertString(document.getLength(), new String(text, 0, length), null);
+        }
+    }
+
+    private static CharBuffer grow(CharBuffer chars) throws IOException {
+        if (chars.capacity() == Integer.MAX_VALUE - 8) {
+            throw new IOException("File too large");
+        }
+        CharBuffer grown = CharBuffer.allocate(
+                (int) Math.min(2L * chars.capacity(), Integer.MAX_VALUE - 8));
+        chars.flip();
+        grown.put(chars);
+        return grown;
+    }
+
+    /**
+     * Turn \r\n and \r into \n in the first length chars of text, and set
+     * the EndOfLineStringProperty of the document to the line end found.
+     * @return the length of the converted text
+     */
+    private int convertLineEnds(char[] text, int length) {
+        boolean crlf = false;
+        boolean cr = false;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text[i];
+            if (c == '\r') {
+                if (i + 1 < length && text[i + 1] == '\n') {
+                    crlf = true;
+                    i++;
+                } else {
+                    cr = true;
+                }
+                c = '\n';
+            }
+            text[n++] = c;
+        }
+        if (crlf) {
+            document.putProperty(DefaultEditorKit.EndOfLineStringProperty, "\r\n");
+        } else if (cr) {
+            document.putProperty(DefaultEditorKit.EndOfLineStringProperty, "\r");
+        } else {
+            document.putProperty(DefaultEditorKit.EndOfLineStringProperty, "\n");
+        }
+        return n;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Writes a Document to a file on a background thread, without ever making
+ * a String of the whole text.
+ *
+ * The text is copied a block at a time under the read lock of the document,
+ * and encoded and written out of it, so the document can still be edited
+ * during the save.  If it is, the text is written again under a single read
+ * lock, so the file always has the text of one version.  Line ends are
+ * written as the EndOfLineStringProperty of the document says, like
+ * DefaultEditorKit.write() does.
+ *
+ * The text goes to a temporary file in the same directory, which then
+ * replaces the file in one atomic move, with its permissions.  A symbolic link is followed, so
+ * the file it points to is replaced, not the link.  A save that fails, or a
+ * crash during it, leaves the old file as it was.
+ */
+public class DocumentSaver extends SwingWorker<File, Void> {
+
+    /**
+     * Number of chars copied under the read lock at a time
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * Saves are run on a single thread, so two saves of a file cannot
+     * replace it out of order
+     */
+    private static final ExecutorService SAVE_THREAD =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "DocumentSaver");
+        }
+    });
+    private final Document document;
+    private final File file;
+    private final CharsetEncoder encoder;
+    private final boolean force;
+    private final String lineEnd;
+    private final Segment segment = new Segment();
+    private final TextHash hash = new TextHash();
+    private volatile long textHash;
+    private CharBuffer chars;
+    private ByteBuffer bytes;
+    private volatile boolean changed;
+    private final DocumentListener changeMonitor = new DocumentListener() {
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            changed = true;
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            changed = true;
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+        }
+    };
+
+    /**
+     * Create a saver for the given document.  Call queue() to start it.
+     * @param document document to save
+     * @param file file to write
+     * @param charset encoding of the file
+     * @param force true to have the text on the disk before the file is
+     * replaced, which is safer but slower
+     */
+    public DocumentSaver(Document document, File file, Charset charset, boolean force) {
+        this.document = document;
+        this.file = file;
+        this.encoder = charset.newEncoder().
+                onMalformedInput(CodingErrorAction.REPLACE).
+                onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.force = force;
+        Object eol = document.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        this.lineEnd = (eol instanceof String) ? (String) eol : "\n";
+        segment.setPartialReturn(true);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the {@link TextHash} of the text written, once it is saved
+     */
+    public long getTextHash() {
+        return textHash;
+    }
+
+    /**
+     * Start the save after the saves started before it
+     */
+    public void queue() {
+        SAVE_THREAD.execute(this);
+    }
+
+    @Override
+    protected File doInBackground() throws IOException, BadLocationException {
+        File target = file.getAbsoluteFile();
+        // a link is saved through, the file it points to is replaced
+        File real = target.getCanonicalFile();
+        File temp = File.createTempFile("." + real.getName() + ".", ".tmp",
+                real.getParentFile());
+        boolean saved = false;
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            chars = CharBuffer.allocate(BLOCK_SIZE * lineEnd.length() + 1);
+            bytes = ByteBuffer.allocateDirect(
+                    (int) (chars.capacity() * encoder.maxBytesPerChar()));
+            document.addDocumentListener(changeMonitor);
+            try {
+                writeBlocks(channel);
+                if (changed) {
+                    channel.truncate(0);
+                    channel.position(0);
+                    writeLocked(channel);
+                }
+            } finally {
+                document.removeDocumentListener(changeMonitor);
+            }
+            if (force) {
+                channel.force(true);
+            }
+            out.close();
+            textHash = hash.getValue();
+            copyPermissions(real, temp);
+            replace(temp, real);
+            saved = true;
+        } finally {
+            if (!saved) {
+                out.close();
+                temp.delete();
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Write the text one block at a time, taking the read lock for each
+     * block.  Stops early if the text is changed.
+     */
+    private void writeBlocks(FileChannel channel) throws IOException, BadLocationException {
+        start();
+        BlockReader reader = new BlockReader();
+        do {
+            document.render(reader);
+            if (reader.error != null) {
+                throw reader.error;
+            }
+            encode(channel, false);
+            setProgress((int) ((long) reader.pos * 100 / Math.max(reader.length, 1)));
+        } while (reader.pos < reader.length && !changed);
+        encode(channel, true);
+    }
+
+    /**
+     * Called under the read lock of the document as the first block of the
+     * text is read, each time the text is written.  A subclass can note here
+     * which version of the text the file gets.
+     */
+    protected void passStarted() {
+    }
+
+    /**
+     * Write the whole text under one read lock
+     */
+    private void writeLocked(final FileChannel channel) throws IOException, BadLocationException {
+        start();
+        final Exception[] error = new Exception[1];
+        document.render(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    passStarted();
+                    int length = document.getLength();
+                    int pos = 0;
+                    while (pos < length) {
+                        pos = readBlock(pos, length);
+                        encode(channel, false);
+                    }
+                    encode(channel, true);
+                } catch (IOException ex) {
+                    error[0] = ex;
+                } catch (BadLocationException ex) {
+                    error[0] = ex;
+                }
+            }
+        });
+        if (error[0] instanceof IOException) {
+            throw (IOException) error[0];
+        } else if (error[0] instanceof BadLocationException) {
+            throw (BadLocationException) error[0];
+        }
+        setProgress(100);
+    }
+
+    private void start() {
+        hash.reset();
+        encoder.reset();
+        chars.clear();
+        chars.flip();
+        bytes.clear();
+    }
+
+    /**
+     * Reads the next block of text, under the read lock
+     */
+    private class BlockReader implements Runnable {
+
+        int pos;
+        int length;
+        BadLocationException error;
+
+        @Override
+        public void run() {
+            try {
+                if (pos == 0) {
+                    passStarted();
+                }
+                length = document.getLength();
+                pos = readBlock(pos, length);
+            } catch (BadLocationException ex) {
+                error = ex;
+            }
+        }
+    }
+
+    /**
+     * Add up to BLOCK_SIZE chars of the text from pos to the chars left in
+     * the buffer, with the line ends converted.  Must be called with the read
+     * lock held.
+     * @return the position after the chars read
+     */
+    private int readBlock(int pos, int length) throws BadLocationException {
+        int n = Math.min(BLOCK_SIZE, length - pos);
+        document.getText(pos, n, segment);
+        n = segment.count;
+        hash.update(segment.array, segment.offset, n);
+        chars.compact();
+        if (lineEnd.equals("\n")) {
+            chars.put(segment.array, segment.offset, n);
+        } else {
+            for (int i = segment.offset; i < segment.offset + n; i++) {
+                char c = segment.array[i];
+                if (c == '\n') {
+                    chars.put(lineEnd);
+                } else {
+                    chars.put(c);
+                }
+            }
+        }
+        chars.flip();
+        return pos + n;
+    }
+
+    /**
+     * Encode the chars in the buffer, and write the bytes.  A high surrogate
+     * at the end of the buffer is kept for the next block.
+     */
+    private void encode(FileChannel channel, boolean endOfInput) throws IOException {
+        while (encoder.encode(chars, bytes, endOfInput).isOverflow()) {
+            write(channel);
+        }
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                write(channel);
+            }
+        }
+        write(channel);
+    }
+
+    private void write(FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Give temp the read, write and execute permissions the file has, if it
+     * exists, so replacing it keeps them.  Where there are no POSIX
+     * permissions, only the ones of the owner are copied.
+     */
+    private static void copyPermissions(File file, File temp) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(temp.toPath(),
+                    Files.getPosixFilePermissions(file.toPath()));
+        } catch (UnsupportedOperationException ex) {
+            temp.setReadable(file.canRead());
+            temp.setWritable(file.canWrite());
+            temp.setExecutable(file.canExecute());
+        }
+    }
+
+    /**
+     * Replace file with temp in one step, so the file always has either the
+     * old or the new text.  A system that cannot do that fails the save and
+     * the file is left as it was.  If force is set the directory is synced
+     * too, so the new file is still there after a crash.
+     */
+    private void replace(File temp, File file) throws IOException {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if (force) {
+            syncDirectory(file.getParentFile());
+        }
+    }
+
+    private static void syncDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            // some systems, Windows for one, cannot open a directory
+            log.log(Level.FINE, null, ex);
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(DocumentSaver.class.getName());
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the versions of the files saved in a directory, so any of them can
+ * be read back.
+ *
+ * The history of a directory is one file that versions are only appended
+ * to.  A version is either a base, which has the whole text, or a delta
+ * against the version of the same file before it, made of the runs of
+ * lines copied from that version and the lines inserted between them.
+ * After MAX_CHAIN deltas, or once the deltas since the base are larger than
+ * it, the next version is a base again, so a version is read back from at
+ * most MAX_CHAIN deltas.
+ *
+ * The history is opened for each use and locked while it is written, so
+ * several editors can add to it.  Versions are added from the files, so it
+ * should be done after the save, off the EDT.  A version cut short by a
+ * crash is dropped the next time the history is written.
+ */
+public class LocalHistory {
+
+    /**
+     * The number of deltas between two bases, at most
+     */
+    public static final int MAX_CHAIN = 16;
+    static final int MAGIC = 0x4d4a4831;
+    static final byte BASE = 1;
+    static final byte DELTA = 2;
+    static final byte COPY = 1;
+    static final byte INSERT = 2;
+    private final File historyFile;
+    private final List<Version> versions;
+
+    private LocalHistory(File historyFile, List<Version> versions) {
+        this.historyFile = historyFile;
+        this.versions = versions;
+    }
+
+    /**
+     * @return the history file in the given directory for the directory of
+     * the given file
+     */
+    public static File getHistoryFile(File dir, File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        String path;
+        try {
+            path = parent.getCanonicalPath();
+        } catch (IOException ex) {
+            path = parent.getAbsolutePath();
+        }
+        TextHash hash = new TextHash();
+        hash.update(path);
+        return new File(dir, Long.toHexString(hash.getValue()) + ".history");
+    }
+
+    /**
+     * Read the list of versions of a history.  A history that does not
+     * exist has none.
+     */
+    public static LocalHistory open(File historyFile) throws IOException {
+        List<Version> versions = new ArrayList<Version>();
+        if (historyFile.isFile()) {
+            RandomAccessFile raf = new RandomAccessFile(historyFile, "r");
+            try {
+                scan(raf, versions);
+            } finally {
+                raf.close();
+            }
+        }
+        return new LocalHistory(historyFile, versions);
+    }
+
+    /**
+     * Read the versions of the history, and return the end of the last
+     * whole one
+     */
+    private static long scan(RandomAccessFile raf, List<Version> versions) throws IOException {
+        long size = raf.length();
+        if (size < 4) {
+            return 0;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC) {
+            throw new IOException("Not a history: " + raf);
+        }
+        Map<String, Version> last = new HashMap<String, Version>();
+        long pos = 4;
+        while (pos + 5 <= size) {
+            raf.seek(pos);
+            byte type = raf.readByte();
+            int length = raf.readInt();
+            long end = pos + 5 + length;
+            if ((type != BASE && type != DELTA) || length < 0 || end > size) {
+                break;
+            }
+            String path = raf.readUTF();
+            long time = raf.readLong();
+            long hash = raf.readLong();
+            Version previous = last.get(path);
+            if (type == DELTA && previous == null) {
+                break;
+            }
+            Version v = new Version(new File(path), time, hash, pos, type == BASE ? null : previous,
+                    type == BASE ? 0 : previous.chain + 1,
+                    (type == BASE ? 0 : previous.deltaSize) + (type == BASE ? 0 : length),
+                    type == BASE ? length : previous.baseSize);
+            versions.add(v);
+            last.put(path, v);
+            pos = end;
+        }
+        return pos;
+    }
+
+    public File getHistoryFile() {
+        return historyFile;
+    }
+
+    /**
+     * @return the versions of the given file, oldest first
+     */
+    public List<Version> getVersions(File file) {
+        String path = file.getAbsolutePath();
+        List<Version> found = new ArrayList<Version>();
+        for (Version v : versions) {
+            if (v.file.getAbsolutePath().equals(path)) {
+                found.add(v);
+            }
+        }
+        return Collections.unmodifiableList(found);
+    }
+
+    /**
+     * @return the text of the given version, with the line ends of the file
+     */
+    public String getText(Version version) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(historyFile, "r");
+        try {
+            return join(readLines(raf, version));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the lines of a version, from its base and the deltas after it
+     */
+    private static List<String> readLines(RandomAccessFile raf, Version version) throws IOException {
+        List<Version> chain = new ArrayList<Version>();
+        for (Version v = version; v != null; v = v.previous) {
+            chain.add(v);
+        }
+        Collections.reverse(chain);
+        List<String> lines = null;
+        for (Version v : chain) {
+            DataInputStream in = readRecord(raf, v);
+            if (lines == null) {
+                lines = split(readText(in));
+            } else {
+                lines = applyDelta(lines, in);
+            }
+        }
+        return lines;
+    }
+
+    private static DataInputStream readRecord(RandomAccessFile raf, Version v) throws IOException {
+        raf.seek(v.position);
+        raf.readByte();
+        byte[] record = new byte[raf.readInt()];
+        raf.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readUTF();
+        in.readLong();
+        in.readLong();
+        return in;
+    }
+
+    private static List<String> applyDelta(List<String> old, DataInputStream in) throws IOException {
+        List<String> lines = new ArrayList<String>(in.readInt());
+        int ops = in.readInt();
+        for (int i = 0; i < ops; i++) {
+            byte op = in.readByte();
+            if (op == COPY) {
+                int start = in.readInt();
+                int count = in.readInt();
+                lines.addAll(old.subList(start, start + count));
+            } else if (op == INSERT) {
+                lines.addAll(split(readText(in)));
+            } else {
+                throw new IOException("Bad delta");
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Add the text the file has now as its latest version, unless it is the
+     * text of the latest version already.  Reads the file, so should not be
+     * called on the EDT.
+     * @return the version added, or null if the text is the same
+     */
+    public Version add(File file) throws IOException {
+        String text = readFile(file);
+        long time = System.currentTimeMillis();
+        TextHash hash = new TextHash();
+        hash.update(text);
+        RandomAccessFile raf = new RandomAccessFile(historyFile, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                // another editor may have added to the history since it was read
+                versions.clear();
+                long end = scan(raf, versions);
+                List<Version> own = getVersions(file);
+                Version previous = own.isEmpty() ? null : own.get(own.size() - 1);
+                if (previous != null && previous.textHash == hash.getValue()) {
+                    return null;
+                }
+                List<String> lines = split(text);
+                byte[] record;
+                byte type;
+                if (previous == null || previous.chain + 1 >= MAX_CHAIN) {
+                    type = BASE;
+                    record = makeBase(file, time, hash.getValue(), text);
+                } else {
+                    type = DELTA;
+                    record = makeDelta(file, time, hash.getValue(), readLines(raf, previous), lines);
+                    if (previous.deltaSize + record.length > previous.baseSize) {
+                        type = BASE;
+                        record = makeBase(file, time, hash.getValue(), text);
+                    }
+                }
+                if (end == 0) {
+                    raf.setLength(0);
+                    raf.writeInt(MAGIC);
+                    end = 4;
+                } else {
+                    raf.setLength(end);
+                }
+                raf.seek(end);
+                raf.writeByte(type);
+                raf.writeInt(record.length);
+                raf.write(record);
+                raf.getChannel().force(false);
+                Version v = new Version(file.getAbsoluteFile(), time,
+                        hash.getValue(), end, type == BASE ? null : previous,
+                        type == BASE ? 0 : previous.chain + 1,
+                        type == BASE ? 0 : previous.deltaSize + record.length,
+                        type == BASE ? record.length : previous.baseSize);
+                versions.add(v);
+                return v;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static DataOutputStream startRecord(ByteArrayOutputStream bytes, File file, long time,
+            long hash) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(file.getAbsolutePath());
+        out.writeLong(time);
+        out.writeLong(hash);
+        return out;
+    }
+
+    private static byte[] makeBase(File file, long time, long hash, String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecord(bytes, file, time, hash);
+        writeText(out, text);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Make a delta that turns the old lines into the new ones.  Each new
+     * line is copied from the old line after the one copied before it if
+     * that is the same, or else from the first old line after it that is,
+     * or else from the first old line that is.  A line found nowhere is
+     * inserted.
+     */
+    private static byte[] makeDelta(File file, long time, long hash, List<String> old,
+            List<String> lines) throws IOException {
+        Map<String, List<Integer>> index = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < old.size(); i++) {
+            List<Integer> at = index.get(old.get(i));
+            if (at == null) {
+                at = new ArrayList<Integer>(1);
+                index.put(old.get(i), at);
+            }
+            at.add(i);
+        }
+        ByteArrayOutputStream ops = new ByteArrayOutputStream();
+        DataOutputStream opsOut = new DataOutputStream(ops);
+        int opCount = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+        StringBuilder inserted = new StringBuilder();
+        for (String line : lines) {
+            if (copyStart >= 0 && copyStart + copyCount < old.size()
+                    && old.get(copyStart + copyCount).equals(line)) {
+                copyCount++;
+                continue;
+            }
+            int found = find(index.get(line), copyStart + copyCount);
+            if (found < 0) {
+                if (copyCount > 0) {
+                    opsOut.writeByte(COPY);
+                    opsOut.writeInt(copyStart);
+                    opsOut.writeInt(copyCount);
+                    opCount++;
+                }
+                copyStart = -1;
+                copyCount = 0;
+                inserted.append(line);
+            } else {
+                if (inserted.length() > 0) {
+                    opsOut.writeByte(INSERT);
+                    writeText(opsOut, inserted.toString());
+                    inserted.setLength(0);
+                    opCount++;
+                } else if (copyCount > 0) {
+                    opsOut.writeByte(COPY);
+                    opsOut.writeInt(copyStart);
+                    opsOut.writeInt(copyCount);
+                    opCount++;
+                }
+                copyStart = found;
+                copyCount = 1;
+            }
+        }
+        if (copyCount > 0) {
+            opsOut.writeByte(COPY);
+            opsOut.writeInt(copyStart);
+            opsOut.writeInt(copyCount);
+            opCount++;
+        } else if (inserted.length() > 0) {
+            opsOut.writeByte(INSERT);
+            writeText(opsOut, inserted.toString());
+            opCount++;
+        }
+        opsOut.flush();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = startRecord(bytes, file, time, hash);
+        out.writeInt(lines.size());
+        out.writeInt(opCount);
+        ops.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the first of the positions from the given one on, or else the
+     * first one, or -1 if there are none
+     */
+    private static int find(List<Integer> at, int from) {
+        if (at == null) {
+            return -1;
+        }
+        for (int i : at) {
+            if (i >= from) {
+                return i;
+            }
+        }
+        return at.get(0);
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Split text into lines, each with its line end.  The last line has
+     * none, and is left out when it is empty.
+     */
+    static List<String> split(String text) {
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Read a file as UTF-8, with the bytes that are not UTF-8 replaced
+     */
+    private static String readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            }
+            return new String(bytes.array(), 0, bytes.position(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A saved version of a file
+     */
+    public static class Version {
+
+        public final File file;
+        /**
+         * The time the version was added, in milliseconds
+         */
+        public final long time;
+        /**
+         * {@link TextHash} of the text of the version
+         */
+        public final long textHash;
+        final long position;
+        /**
+         * The version this one is a delta against, null for a base
+         */
+        final Version previous;
+        final int chain;
+        final long deltaSize;
+        final long baseSize;
+
+        Version(File file, long time, long textHash, long position, Version previous,
+                int chain, long deltaSize, long baseSize) {
+            this.file = file;
+            this.time = time;
+            this.textHash = textHash;
+            this.position = position;
+            this.previous = previous;
+            this.chain = chain;
+            this.deltaSize = deltaSize;
+            this.baseSize = baseSize;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.File;
+import java.io.IOException;
+import javax.swing.SwingWorker;
+import jsyntaxpane.Lexer;
+import jsyntaxpane.MappedDocument;
+import jsyntaxpane.MappedFileContent;
+
+/**
+ * Maps a file into a read only {@link MappedDocument} on a background
+ * thread.  The file is not read into memory, only indexed a page at a time,
+ * so this works for files far larger than the heap.
+ *
+ * The progress property goes from 0 to 100 as the file is indexed.  The
+ * loader stops at the next page when it is cancelled.
+ */
+public class MappedFileLoader extends SwingWorker<MappedDocument, Void> {
+
+    private final File file;
+    private final Lexer lexer;
+
+    /**
+     * Create a loader for the given UTF-8 file.  Call execute() to start it.
+     * @param file file to map
+     * @param lexer lexer of the document
+     */
+    public MappedFileLoader(File file, Lexer lexer) {
+        this.file = file;
+        this.lexer = lexer;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    protected MappedDocument doInBackground() throws IOException {
+        MappedFileContent content = new MappedFileContent(file);
+        while (content.indexPage()) {
+            if (isCancelled()) {
+                return null;
+            }
+            setProgress(content.getIndexProgress());
+        }
+        setProgress(100);
+        return new MappedDocument(lexer, content);
+    }
+}
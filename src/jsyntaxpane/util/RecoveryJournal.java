@@ -0,0 +1,548 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+
+/**
+ * Keeps the unsaved changes of a document on the disk, so they can be
+ * recovered if the editor dies before they are saved.
+ *
+ * The journal is a log file that starts with the text the changes apply to,
+ * the base: the file the document was read from or last saved to, or a
+ * snapshot of the document, with the {@link TextHash} of its text.  The
+ * inserts and removes made since follow.  They are given to inserted() and
+ * removed() as they happen, and written out by a single thread
+ * FLUSH_DELAY_MS after the first of them.  Once the log is larger than the
+ * text, the text is written to a new snapshot by a {@link DocumentSaver},
+ * and the log starts again from it.  After a save the log is deleted.
+ *
+ * The journal holds a lock file while it is open, and close() deletes all
+ * its files.  The logs left by an editor that died have no lock held, see
+ * findOrphans().  A {@link RecoveryLoader} reads the text back.
+ */
+public class RecoveryJournal {
+
+    /**
+     * Delay between the first change added to the buffer and the write
+     */
+    public static final int FLUSH_DELAY_MS = 1000;
+    /**
+     * The log is not compacted before it is this large
+     */
+    static final long MIN_COMPACT_SIZE = 256 * 1024;
+    static final int MAGIC = 0x4d4a5231;
+    static final byte INSERT = 1;
+    static final byte REMOVE = 2;
+    static final String LOG = ".log";
+    static final String LOCK = ".lock";
+    static final String SNAPSHOT = ".snapshot";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger log = Logger.getLogger(RecoveryJournal.class.getName());
+    private static final ScheduledExecutorService WRITE_THREAD =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RecoveryJournal");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final File dir;
+    private final String id;
+    private final Document document;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    /**
+     * The number of changes made, guarded by the lock of the document
+     */
+    private volatile long changes;
+    // The fields below are guarded by this
+    private Header header;
+    /**
+     * The number of changes made before the base
+     */
+    private long baseChanges;
+    private List<Change> pending = new ArrayList<Change>();
+    private boolean rewrite;
+    private boolean flushQueued;
+    private boolean closed;
+    // The fields below belong to the write thread
+    private long logSize;
+    private int snapshots;
+
+    private RecoveryJournal(File dir, String id, Document document, Header header) throws IOException {
+        this.dir = dir;
+        this.id = id;
+        this.document = document;
+        this.header = header;
+        lockFile = new RandomAccessFile(new File(dir, id + LOCK), "rw");
+        FileLock l = null;
+        try {
+            l = lockFile.getChannel().tryLock();
+        } finally {
+            if (l == null) {
+                lockFile.close();
+            }
+        }
+        if (l == null) {
+            throw new IOException("Journal " + id + " is in use");
+        }
+        lock = l;
+    }
+
+    /**
+     * Start a journal for a document that has no unsaved changes
+     * @param dir directory of the journals
+     * @param document the document
+     * @param file the file of the document, or null if it was not saved
+     * @param title title of the document
+     * @param textHash {@link TextHash} of the text of the file, unused if
+     * there is no file and the document is empty
+     */
+    public static RecoveryJournal start(File dir, Document document, File file, String title,
+            long textHash) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String id = Long.toHexString(System.currentTimeMillis()) + "-"
+                + Integer.toHexString(System.identityHashCode(document));
+        return new RecoveryJournal(dir, id, document,
+                new Header(file, title, file, textHash, getLineEnd(document)));
+    }
+
+    /**
+     * Take over the log of an editor that died, for the document its text
+     * was recovered into
+     * @param logFile the log, see findOrphans()
+     * @param document the document with the text of the log
+     */
+    public static RecoveryJournal resume(File logFile, Document document) throws IOException {
+        String name = logFile.getName();
+        RecoveryJournal journal = new RecoveryJournal(logFile.getAbsoluteFile().getParentFile(),
+                name.substring(0, name.length() - LOG.length()), document, readHeader(logFile));
+        journal.logSize = logFile.length();
+        return journal;
+    }
+
+    private static String getLineEnd(Document document) {
+        Object eol = document.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        return (eol instanceof String) ? (String) eol : "\n";
+    }
+
+    /**
+     * @return the logs in the directory that are not held by a journal, and
+     * so were left by an editor that died, newest first
+     */
+    public static List<File> findOrphans(File dir) {
+        List<File> orphans = new ArrayList<File>();
+        File[] logs = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(LOG);
+            }
+        });
+        if (logs == null) {
+            return orphans;
+        }
+        for (File logFile : logs) {
+            String name = logFile.getName();
+            File lockPath = new File(dir, name.substring(0, name.length() - LOG.length()) + LOCK);
+            try {
+                RandomAccessFile raf = new RandomAccessFile(lockPath, "rw");
+                try {
+                    FileLock l = raf.getChannel().tryLock();
+                    if (l != null) {
+                        l.release();
+                        orphans.add(logFile);
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, null, ex);
+            }
+        }
+        Collections.sort(orphans, new Comparator<File>() {
+
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(b.lastModified()).compareTo(a.lastModified());
+            }
+        });
+        return orphans;
+    }
+
+    /**
+     * Delete a log left by an editor that died, and its snapshots
+     */
+    public static void delete(File logFile) {
+        String name = logFile.getName();
+        String id = name.substring(0, name.length() - LOG.length());
+        File dir = logFile.getAbsoluteFile().getParentFile();
+        deleteSnapshots(dir, id, null);
+        logFile.delete();
+        new File(dir, id + LOCK).delete();
+    }
+
+    /**
+     * Delete the snapshots of the journal with the given id, except keep
+     */
+    private static void deleteSnapshots(File dir, final String id, File keep) {
+        File[] files = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(id + ".") && f.getName().endsWith(SNAPSHOT);
+            }
+        });
+        if (files != null) {
+            for (File f : files) {
+                if (!f.equals(keep)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the start of a log
+     */
+    public static Header readHeader(File logFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            return readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a recovery journal");
+        }
+        String file = in.readUTF();
+        String title = in.readUTF();
+        String base = in.readUTF();
+        long hash = in.readLong();
+        String lineEnd = in.readUTF();
+        return new Header(file.length() == 0 ? null : new File(file), title,
+                base.length() == 0 ? null : new File(base), hash, lineEnd);
+    }
+
+    /**
+     * Add an insert.  Called as the document is changed, under its lock.
+     */
+    public synchronized void inserted(int offset, String text) {
+        pending.add(new Change(++changes, offset, text, text.length()));
+        queueFlush();
+    }
+
+    /**
+     * Add a remove.  Called as the document is changed, under its lock.
+     */
+    public synchronized void removed(int offset, int length) {
+        pending.add(new Change(++changes, offset, null, length));
+        queueFlush();
+    }
+
+    /**
+     * The text of the document was saved to the file, and has no unsaved
+     * changes.  The log is deleted.
+     * @param textHash {@link TextHash} of the text saved
+     */
+    public synchronized void saved(File file, String title, long textHash) {
+        header = new Header(file, title, file, textHash, getLineEnd(document));
+        baseChanges = changes;
+        rewrite = true;
+        queueFlush();
+    }
+
+    private void queueFlush() {
+        if (!flushQueued && !closed) {
+            flushQueued = true;
+            WRITE_THREAD.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write out the changes added, and compact the log if it got too large.
+     * Runs on the write thread.
+     */
+    private void flush() {
+        List<Change> added;
+        Header h;
+        long base;
+        boolean newLog;
+        synchronized (this) {
+            flushQueued = false;
+            if (closed) {
+                return;
+            }
+            added = pending;
+            pending = new ArrayList<Change>();
+            h = header;
+            base = baseChanges;
+            newLog = rewrite;
+            rewrite = false;
+        }
+        try {
+            if (newLog) {
+                List<Change> after = new ArrayList<Change>();
+                for (Change c : added) {
+                    if (c.number > base) {
+                        after.add(c);
+                    }
+                }
+                writeLog(h, after);
+            } else if (!added.isEmpty()) {
+                if (logSize == 0) {
+                    writeLog(h, added);
+                } else {
+                    appendLog(added);
+                }
+            }
+            if (logSize > Math.max(MIN_COMPACT_SIZE, 2L * document.getLength())) {
+                compact();
+            }
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Replace the log with one of the given base and changes, or delete it if
+     * there are no changes
+     */
+    private void writeLog(Header h, List<Change> added) throws IOException {
+        File logFile = new File(dir, id + LOG);
+        if (added.isEmpty() && !isSnapshot(h.base)) {
+            // the text is the one of the file
+            logFile.delete();
+            logSize = 0;
+        } else {
+            File temp = new File(dir, id + LOG + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                data.writeInt(MAGIC);
+                data.writeUTF(h.file == null ? "" : h.file.getAbsolutePath());
+                data.writeUTF(h.title);
+                data.writeUTF(h.base == null ? "" : h.base.getAbsolutePath());
+                data.writeLong(h.baseHash);
+                data.writeUTF(h.lineEnd);
+                writeChanges(data, added);
+                data.flush();
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            logSize = temp.length();
+            if (!temp.renameTo(logFile)) {
+                logFile.delete();
+                if (!temp.renameTo(logFile)) {
+                    throw new IOException("Cannot replace " + logFile);
+                }
+            }
+        }
+        // the snapshots older than the base are not needed any more
+        deleteSnapshots(dir, id, h.base);
+    }
+
+    private boolean isSnapshot(File base) {
+        return base != null && base.getName().startsWith(id + ".")
+                && base.getName().endsWith(SNAPSHOT);
+    }
+
+    private void appendLog(List<Change> added) throws IOException {
+        File logFile = new File(dir, id + LOG);
+        FileOutputStream out = new FileOutputStream(logFile, true);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            writeChanges(data, added);
+            data.flush();
+        } finally {
+            out.close();
+        }
+        logSize = logFile.length();
+    }
+
+    private static void writeChanges(DataOutputStream data, List<Change> added) throws IOException {
+        for (Change c : added) {
+            if (c.text != null) {
+                data.writeByte(INSERT);
+                data.writeInt(c.offset);
+                data.writeInt(c.length);
+                data.writeChars(c.text);
+            } else {
+                data.writeByte(REMOVE);
+                data.writeInt(c.offset);
+                data.writeInt(c.length);
+            }
+        }
+    }
+
+    /**
+     * Write the text to a snapshot, and start the log again from it
+     */
+    private void compact() throws IOException {
+        // named by time too, as a resumed journal may still have its base
+        final File snapshot = new File(dir, id + "." + Long.toHexString(System.currentTimeMillis())
+                + "-" + (++snapshots) + SNAPSHOT);
+        final long[] version = new long[1];
+        DocumentSaver saver = new DocumentSaver(document, snapshot, UTF8, true) {
+
+            @Override
+            protected void passStarted() {
+                version[0] = changes;
+            }
+        };
+        saver.run();
+        try {
+            saver.get();
+        } catch (InterruptedException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return;
+        } catch (ExecutionException ex) {
+            log.log(Level.SEVERE, null, ex);
+            snapshot.delete();
+            return;
+        }
+        synchronized (this) {
+            if (closed || baseChanges > version[0]) {
+                // saved meanwhile
+                snapshot.delete();
+                return;
+            }
+            header = new Header(header.file, header.title, snapshot,
+                    saver.getTextHash(), getLineEnd(document));
+            baseChanges = version[0];
+            rewrite = true;
+        }
+        flush();
+    }
+
+    /**
+     * Stop the journal, and delete its files.  Waits for the files to be
+     * deleted.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+        }
+        Future<?> done = WRITE_THREAD.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                deleteSnapshots(dir, id, null);
+                new File(dir, id + LOG).delete();
+                try {
+                    lock.release();
+                    lockFile.close();
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, null, ex);
+                }
+                new File(dir, id + LOCK).delete();
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } catch (ExecutionException ex) {
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * The start of a log: what the text was, and what it is for
+     */
+    public static class Header {
+
+        /**
+         * The file of the document, or null if it was never saved
+         */
+        public final File file;
+        public final String title;
+        /**
+         * The text the changes apply to, or null for an empty text
+         */
+        public final File base;
+        public final long baseHash;
+        public final String lineEnd;
+
+        Header(File file, String title, File base, long baseHash, String lineEnd) {
+            this.file = file;
+            this.title = title;
+            this.base = base;
+            this.baseHash = baseHash;
+            this.lineEnd = lineEnd;
+        }
+    }
+
+    /**
+     * An insert, or a remove if text is null
+     */
+    private static class Change {
+
+        final long number;
+        final int offset;
+        final String text;
+        final int length;
+
+        Change(long number, int offset, String text, int length) {
+            this.number = number;
+            this.offset = offset;
+            this.text = text;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+
+/**
+ * Reads the text a {@link RecoveryJournal} kept into a Document on a
+ * background thread: the base is read like a {@link DocumentLoader} reads a
+ * file, and the changes of the log are made to it.  A change cut short by
+ * the end of the log, as the editor died while writing it, is left out.
+ * Fails if the base does not have the text it had when the log was written.
+ */
+public class RecoveryLoader extends SwingWorker<Document, Void> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final File logFile;
+    private final Document document;
+
+    /**
+     * Create a loader for the given log.  Call execute() to start it.
+     * @param logFile log of the journal, see RecoveryJournal.findOrphans()
+     * @param document empty document to read the text into
+     */
+    public RecoveryLoader(File logFile, Document document) {
+        this.logFile = logFile;
+        this.document = document;
+    }
+
+    public File getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    protected Document doInBackground() throws IOException, BadLocationException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile)));
+        try {
+            RecoveryJournal.Header header = RecoveryJournal.readHeader(in);
+            if (header.base != null) {
+                DocumentLoader base = new DocumentLoader(header.base, document, UTF8);
+                base.doInBackground();
+                if (base.getTextHash() != header.baseHash) {
+                    throw new IOException(header.base + " was changed since " + logFile);
+                }
+            }
+            document.putProperty(DefaultEditorKit.EndOfLineStringProperty, header.lineEnd);
+            setProgress(50);
+            readChanges(in);
+        } finally {
+            in.close();
+        }
+        setProgress(100);
+        return document;
+    }
+
+    private void readChanges(DataInputStream in) throws IOException, BadLocationException {
+        char[] text = new char[0];
+        while (!isCancelled()) {
+            int type = in.read();
+            if (type < 0) {
+                return;
+            }
+            try {
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (type == RecoveryJournal.INSERT) {
+                    if (text.length < length) {
+                        text = new char[length];
+                    }
+                    for (int i = 0; i < length; i++) {
+                        text[i] = in.readChar();
+                    }
+                    document.insertString(offset, new String(text, 0, length), null);
+                } else if (type == RecoveryJournal.REMOVE) {
+                    document.remove(offset, length);
+                } else {
+                    throw new IOException("Bad change in " + logFile);
+                }
+            } catch (EOFException ex) {
+                return;
+            }
+        }
+    }
+}
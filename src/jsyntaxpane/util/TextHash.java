@@ -0,0 +1,54 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License
+ *       at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jsyntaxpane.util;
+
+/**
+ * A 64 bit FNV-1a hash of text, added to a block of chars at a time like a
+ * java.util.zip.Checksum.  It tells if a file still has the text it had,
+ * without keeping that text.
+ */
+public class TextHash {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private long hash = OFFSET_BASIS;
+
+    public void update(char[] chars, int offset, int length) {
+        long h = hash;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+            h = (h ^ (c & 0xff)) * PRIME;
+            h = (h ^ (c >>> 8)) * PRIME;
+        }
+        hash = h;
+    }
+
+    public void update(CharSequence text) {
+        long h = hash;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            h = (h ^ (c & 0xff)) * PRIME;
+            h = (h ^ (c >>> 8)) * PRIME;
+        }
+        hash = h;
+    }
+
+    public long getValue() {
+        return hash;
+    }
+
+    public void reset() {
+        hash = OFFSET_BASIS;
+    }
+}
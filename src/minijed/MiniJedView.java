@@ -29,24 +29,32 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.DefaultListModel;
 import javax.swing.Timer;
 import javax.swing.Icon;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JDialog;
 import javax.swing.JEditorPane;
 import javax.swing.JFrame;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.text.Highlighter;
+import javax.swing.text.PlainDocument;
+import jsyntaxpane.util.DocumentLoader;
+import jsyntaxpane.util.RecoveryJournal;
 import minijava.YourMiniJavaCompiler;
 import minijed.compiler.infrastructure.MiniJavaCompiler;
 import minijed.compiler.infrastructure.MiniJavaLexerException;
@@ -70,6 +78,7 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
     private final String IDENTIFIERS_DEFAULT = "0x000000";
     private final String DEFAULT_TEXT_DEFAULT = "0x000000";
     private final Color ERROR_HIGHLIGHT_COLOR = new Color(255, 139, 139);
+    private static final Logger LOG = Logger.getLogger(MiniJedView.class.getName());
     private int newDocumentsCounter;
     private JFrame frame;
     private DocumentIOManager ioManager;
@@ -80,6 +89,8 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
     private DefaultListModel compilerMessagesModel;
     private JTextArea tmp;
     private AppRunner appRunner;
+    private JCheckBoxMenuItem largeFileMenuItem;
+    private boolean largeFileMode;
 
     public MiniJedView(SingleFrameApplication app) {
         super(app);
@@ -172,9 +183,35 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
 
     private void postInit() {
         this.appRunner = new AppRunner(jEditorPane1);
+        this.largeFileMenuItem = new JCheckBoxMenuItem(getResourceMap().getString("largeFileMenuItem.text"));
+        this.largeFileMenuItem.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                editorView1.setLargeFileMode(largeFileMenuItem.isSelected());
+            }
+        });
+        this.jMenu1.addSeparator();
+        this.jMenu1.add(this.largeFileMenuItem);
+        JMenuItem openReadOnlyMenuItem = new JMenuItem(getResourceMap().getString("openReadOnlyMenuItem.text"));
+        openReadOnlyMenuItem.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                openReadOnly();
+            }
+        });
+        JMenu fileMenu = this.menuBar.getMenu(0);
+        fileMenu.insert(openReadOnlyMenuItem,
+                fileMenu.getPopupMenu().getComponentIndex(jMenuItem2) + 1);
         createDocument();
         this.jList1.setCellRenderer(new CompilerMessagesListCellRenderer());
         this.jList1.setModel(this.compilerMessagesModel);
+        // once the frame is shown
+        SwingUtilities.invokeLater(new Runnable() {
+
+            public void run() {
+                offerRecovery();
+            }
+        });
     }
 
     // <editor-fold defaultstate="collapsed" desc="Settings and preferences">
@@ -237,6 +274,7 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
     // <editor-fold defaultstate="collapsed" desc="Document I/O">
     private void createDocument() {
         if (this.editorView1 != null) {
+            this.editorView1.close();
             this.jTabbedPane2.remove(this.editorView1);
             this.editorView1.setVisible(false);
         }
@@ -249,12 +287,59 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
         this.compilerMessagesModel.clear();
     }
 
-    private void createDocument(File f) {
+    private void createDocument(File f, boolean readOnly) {
+        if (this.editorView1 != null) {
+            this.editorView1.close();
+            this.jTabbedPane2.remove(this.editorView1);
+            this.editorView1.setVisible(false);
+        }
+        this.editorView1 = new EditorView(f, this, readOnly);
+        this.jTabbedPane2.add("Code Editor", this.editorView1);
+        this.editorView1.initEditor(this.jPopupMenu1, this.editorFont, this.editorColors);
+
+        enableDisableUndoRedo();
+        this.compilerMessagesModel.clear();
+    }
+
+    /**
+     * Offer to restore the unsaved changes left by an editor that died.  The
+     * changes the user does not want are deleted, and the ones left when the
+     * dialog is cancelled are offered again at the next start.
+     */
+    private void offerRecovery() {
+        List<File> logs = RecoveryJournal.findOrphans(EditorView.RECOVERY_DIR);
+        for (File log : logs) {
+            RecoveryJournal.Header header;
+            try {
+                header = RecoveryJournal.readHeader(log);
+            } catch (IOException ex) {
+                RecoveryJournal.delete(log);
+                continue;
+            }
+            String name = (header.file != null) ? header.file.getPath() : header.title;
+            int res = JOptionPane.showConfirmDialog(frame,
+                    getResourceMap().getString("recoveryMessage.text", name),
+                    getResourceMap().getString("recoveryTitle.text"),
+                    JOptionPane.YES_NO_CANCEL_OPTION);
+            if (res == JOptionPane.YES_OPTION) {
+                // there is one editor, the other changes wait for the next start
+                createDocument(log, header);
+                return;
+            } else if (res == JOptionPane.NO_OPTION) {
+                RecoveryJournal.delete(log);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void createDocument(File recoveryLog, RecoveryJournal.Header header) {
         if (this.editorView1 != null) {
+            this.editorView1.close();
             this.jTabbedPane2.remove(this.editorView1);
             this.editorView1.setVisible(false);
         }
-        this.editorView1 = new EditorView(f, this);
+        this.editorView1 = new EditorView(recoveryLog, header, this);
         this.jTabbedPane2.add("Code Editor", this.editorView1);
         this.editorView1.initEditor(this.jPopupMenu1, this.editorFont, this.editorColors);
 
@@ -262,23 +347,44 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
         this.compilerMessagesModel.clear();
     }
 
-    private void insertFile(File f) {
+    private void insertFile(final File f) {
         if (f != null) {
             if (editorView1 != null) {
-                try {
-                    InputStreamReader reader = new InputStreamReader(new FileInputStream(f), "UTF-8");
-                    StringBuffer buffer = new StringBuffer();
-                    int c = 0;
-                    try {
-                        while ((c = reader.read()) != -1) {
-                            buffer.append((char) c);
+                final EditorView view = editorView1;
+                // the loader only sets the line end property of the document,
+                // the text read goes to the view as it is
+                new DocumentLoader(f, new PlainDocument(), Charset.forName("UTF-8")) {
+
+                    private char[] text;
+                    private int length;
+
+                    @Override
+                    protected void insertText(char[] text, int length) {
+                        this.text = text;
+                        this.length = length;
+                    }
+
+                    @Override
+                    protected void done() {
+                        boolean loaded = false;
+                        try {
+                            get();
+                            loaded = true;
+                        } catch (InterruptedException ex) {
+                            LOG.log(Level.SEVERE, null, ex);
+                        } catch (ExecutionException ex) {
+                            LOG.log(Level.SEVERE, null, ex);
+                        }
+                        if (loaded) {
+                            view.insertText(text, length);
+                        } else {
+                            JOptionPane.showMessageDialog(frame,
+                                    getResourceMap().getString("insertErrorMessage.text", f.getPath()),
+                                    getResourceMap().getString("insertErrorTitle.text"),
+                                    JOptionPane.ERROR_MESSAGE);
                         }
-                    } catch (IOException ioe) {
                     }
-                    editorView1.insertText(buffer.toString());
-                } catch (FileNotFoundException fnfe) {
-                } catch (UnsupportedEncodingException uee) {
-                }
+                }.execute();
             }
         }
     }
@@ -297,6 +403,13 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
         }
     }
 
+    public void openReadOnly() {
+        try {
+            ioManager.openReadOnly(frame, new MiniJavaFileFilter());
+        } catch (IOException ioe) {
+        }
+    }
+
     public void open(File f) {
         try {
             ioManager.open(frame, f, new MiniJavaFileFilter());
@@ -410,7 +523,11 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
     }
 
     private void updatePositionLabel(int caretX, int caretY) {
-        this.statusMessageLabel.setText("Line " + caretY + ", Char. " + caretX);
+        String text = "Line " + caretY + ", Char. " + caretX;
+        if (this.largeFileMode) {
+            text = text + " - " + getResourceMap().getString("largeFileMode.text");
+        }
+        this.statusMessageLabel.setText(text);
     }
     //</editor-fold>
 
@@ -453,6 +570,49 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
         enableUndoControls();
     }
 
+    public void notifyLoadingProgress(int percent) {
+        if (!busyIconTimer.isRunning()) {
+            statusAnimationLabel.setIcon(busyIcons[0]);
+            busyIconIndex = 0;
+            busyIconTimer.start();
+        }
+        progressBar.setVisible(true);
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(percent);
+        statusMessageLabel.setText(getResourceMap().getString("loadingMessage.text",
+                editorView1.getTitle()));
+    }
+
+    public void notifyLoadingFinished(boolean loaded) {
+        busyIconTimer.stop();
+        statusAnimationLabel.setIcon(idleIcon);
+        progressBar.setVisible(false);
+        progressBar.setValue(0);
+        if (loaded) {
+            Point p = editorView1.getCaretPosition();
+            updatePositionLabel(p.x + 1, p.y + 1);
+        } else {
+            // do not leave an empty document that would be saved over the file
+            createDocument();
+        }
+    }
+
+    public void notifySaveFinished(File f, boolean saved) {
+        if (!saved) {
+            JOptionPane.showMessageDialog(frame,
+                    getResourceMap().getString("saveErrorMessage.text", f.getPath()),
+                    getResourceMap().getString("saveErrorTitle.text"),
+                    JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    public void notifyLargeFileModeChanged(boolean largeFileMode) {
+        this.largeFileMode = largeFileMode;
+        this.largeFileMenuItem.setSelected(largeFileMode);
+        Point p = editorView1.getCaretPosition();
+        updatePositionLabel(p.x + 1, p.y + 1);
+    }
+
     //</editor-fold>
     // <editor-fold defaultstate="collapsed" desc="DocumentContainer implementation">
     public boolean isCurrentDocModified() {
@@ -476,11 +636,19 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
     }
 
     public boolean saveDocument(File output) {
+        if (this.editorView1.isLoading() || this.editorView1.isReadOnly()) {
+            return false;
+        }
         return this.editorView1.saveFile(output);
     }
 
     public boolean openDocument(File input) {
-        this.createDocument(input);
+        this.createDocument(input, false);
+        return true;
+    }
+
+    public boolean openDocumentReadOnly(File input) {
+        this.createDocument(input, true);
         return true;
     }
 
@@ -503,15 +671,19 @@ public class MiniJedView extends FrameView implements EditorViewContainer, Docum
         }
 
         public void willExit(java.util.EventObject e) {
+            // writes out the undo journal, and deletes the recovery journal
+            editorView1.close();
         }
     }
 
     public boolean queryCloseApp() {
-        if (this.editorView1.isModified()) {
+        // a save still running would be cut short by the exit
+        boolean saved = this.editorView1.waitForSave();
+        if (this.editorView1.isModified() || !saved) {
             int res = ioManager.showModifiedWarning(frame, this.editorView1.getTitle());
             if (res == JOptionPane.YES_OPTION) {
                 if (save()) {
-                    return true;
+                    return this.editorView1.waitForSave();
                 }
                 return false;
             } else if (res == JOptionPane.NO_OPTION) {
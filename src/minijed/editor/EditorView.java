@@ -24,18 +24,30 @@ import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.GraphicsEnvironment;
 import java.awt.Point;
+import java.awt.event.ActionEvent;
 import java.awt.image.BufferedImage;
-import java.io.BufferedWriter;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
 import javax.swing.JEditorPane;
+import javax.swing.JOptionPane;
 import javax.swing.JPopupMenu;
+import javax.swing.JProgressBar;
+import javax.swing.KeyStroke;
+import javax.swing.SwingWorker;
+import javax.swing.UIManager;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
 import javax.swing.event.DocumentEvent;
@@ -45,26 +57,82 @@ import javax.swing.event.UndoableEditListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultHighlighter;
 import javax.swing.text.DefaultHighlighter.DefaultHighlightPainter;
+import javax.swing.text.Document;
 import javax.swing.text.EditorKit;
+import jsyntaxpane.DefaultSyntaxKit;
+import jsyntaxpane.JournalPolicy;
+import jsyntaxpane.PieceTableContent;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.SyntaxStyles;
 import jsyntaxpane.TokenType;
+import jsyntaxpane.UndoJournal;
 import jsyntaxpane.lexers.MiniJavaLexer;
+import jsyntaxpane.util.DocumentLoader;
+import jsyntaxpane.util.DocumentSaver;
+import jsyntaxpane.util.LocalHistory;
+import jsyntaxpane.util.MappedFileLoader;
+import jsyntaxpane.util.RecoveryJournal;
+import jsyntaxpane.util.RecoveryLoader;
 
 /**
  *
  * @author  cyberpython
  */
-public class EditorView extends javax.swing.JPanel implements DocumentListener, CaretListener, UndoableEditListener {
+public class EditorView extends javax.swing.JPanel implements DocumentListener, CaretListener, UndoableEditListener, PropertyChangeListener {
 
     private boolean newFile;
     private boolean modified;
+    private boolean readOnly;
     private String Title;
     private File storage;
     private SyntaxDocument document;
     private EditorViewContainer container;
     private String UNTITLED;
+    private String READ_ONLY;
     private JPopupMenu popupMenu;
+    private SwingWorker<? extends Document, Void> loader;
+    private DocumentSaver saver;
+    /**
+     * The dialog shown by waitForSave(), closed when the save is done
+     */
+    private JDialog saveWaitDialog;
+    private UndoJournal journal;
+    private JournalPolicy journalPolicy = new JournalPolicy();
+    private RecoveryJournal recovery;
+    private File recoveryLog;
+    private static final String CANCEL_LOADING = "cancelLoading";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger LOG = Logger.getLogger(EditorView.class.getName());
+    /**
+     * The directory of the undo journals of the files edited
+     */
+    private static final File JOURNAL_DIR = new File(System.getProperty("user.home"),
+            ".minijed" + File.separator + "undo");
+    /**
+     * True once the undo journals were pruned, which is done before the
+     * first one is opened
+     */
+    private static boolean journalsPruned;
+    /**
+     * The directory of the journals of the unsaved changes
+     */
+    public static final File RECOVERY_DIR = new File(System.getProperty("user.home"),
+            ".minijed" + File.separator + "recovery");
+    /**
+     * The directory of the histories of the saved versions
+     */
+    private static final File HISTORY_DIR = new File(System.getProperty("user.home"),
+            ".minijed" + File.separator + "history");
+    /**
+     * Versions are added to the histories one at a time, after the saves
+     */
+    private static final ExecutorService HISTORY_THREAD =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "LocalHistory");
+        }
+    });
 
     /** Creates new form EditorView */
     public EditorView() {
@@ -87,14 +155,39 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
     }
 
     public EditorView(File input, EditorViewContainer container) {
+        this(input, container, false);
+    }
+
+    /**
+     * Creates a view of the given file.  A read only view maps the file
+     * instead of reading it, so the file can be larger than the memory.
+     */
+    public EditorView(File input, EditorViewContainer container, boolean readOnly) {
+        this.readOnly = readOnly;
         preInit(input, -1, container);
         initComponents();
         postInit(input);
     }
 
+    /**
+     * Creates a view of the text kept by the recovery journal of an editor
+     * that died, see {@link RecoveryJournal#findOrphans(File)}.  The view
+     * takes over the journal.
+     */
+    public EditorView(File recoveryLog, RecoveryJournal.Header header, EditorViewContainer container) {
+        this.recoveryLog = recoveryLog;
+        preInit(header.file, 0, container);
+        if (header.file == null) {
+            this.Title = header.title;
+        }
+        initComponents();
+        postInit();
+    }
+
     private void preInit(File input, int documentCount, EditorViewContainer container) {
 
         UNTITLED = "Untitled";
+        READ_ONLY = " (read only)";
 
         this.container = container;
 
@@ -118,6 +211,9 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
     private void postInit(File f) {
         this.storage = f;
         this.Title = storage.getName();
+        if (readOnly) {
+            this.Title = Title + READ_ONLY;
+        }
         this.newFile = false;
 
 
@@ -133,20 +229,27 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
         jsyntaxpane.DefaultSyntaxKit.initKit();
         jEditorPane1.setContentType("text/minijava");
         jEditorPane1.setFont(f);        
-
-        if (this.isNewFile()) {
-            createEmptyFile();
-        } else {
+        journalPolicy.config(DefaultSyntaxKit.getConfig(),
+                jEditorPane1.getEditorKit().getClass().getSimpleName());
+
+        createEmptyFile();
+        if (recoveryLog != null) {
+            recoverFile(recoveryLog);
+        } else if (readOnly) {
+            mapFile(this.storage);
+        } else if (!this.isNewFile()) {
             loadFile(this.storage);
+        } else {
+            startRecovery(0);
         }
 
         this.setEditorColors(colors);
 
-        jEditorPane1.getDocument().addDocumentListener(this);
         jEditorPane1.addCaretListener(this);
-        jEditorPane1.getDocument().addUndoableEditListener(this);
+        jEditorPane1.addPropertyChangeListener(DefaultSyntaxKit.LARGE_FILE_MODE, this);
         
         container.notifyCaretChanged(null);    
+        container.notifyLargeFileModeChanged(isLargeFileMode());
         
         jEditorPane1.invalidate();
 
@@ -156,6 +259,31 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
         this.jEditorPane1.replaceSelection(text);
     }
 
+    /**
+     * Replace the selection with the first length chars of text, as one
+     * edit.  The array may become part of the document, see
+     * {@link SyntaxDocument#insertText(int, char[], int)}.
+     */
+    public void insertText(char[] text, int length) {
+        if (!jEditorPane1.isEditable()) {
+            UIManager.getLookAndFeel().provideErrorFeedback(jEditorPane1);
+            return;
+        }
+        int start = jEditorPane1.getSelectionStart();
+        int end = jEditorPane1.getSelectionEnd();
+        document.beginEdit();
+        try {
+            if (end > start) {
+                document.remove(start, end - start);
+            }
+            document.insertText(start, text, length);
+        } catch (BadLocationException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            document.endEdit();
+        }
+    }
+
     public Font getEditorFont() {        
         return jEditorPane1.getFont();
     }
@@ -399,67 +527,447 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
         this.storage = null;
         this.Title = UNTITLED + "-" + documentCount;
         this.newFile = true;
+        closeJournal();
         setModified(false);
+        startRecovery(0);
     }
     
     
     
 
     private void createEmptyFile() {
-        this.document = new SyntaxDocument(new MiniJavaLexer());
-        jEditorPane1.setDocument(this.document);
-        jEditorPane1.setCaretPosition(0);
+        setDocument(new SyntaxDocument(new MiniJavaLexer()));
 
         setModified(false);
         this.document.clearUndos();
     }
 
-    private boolean loadFile(File f) {
+    /**
+     * Show the given document in the editor, in place of the current one
+     */
+    private void setDocument(SyntaxDocument doc) {
+        if (this.document != null) {
+            this.document.removeDocumentListener(this);
+            this.document.removeUndoableEditListener(this);
+        }
+        this.document = doc;
+        jEditorPane1.setDocument(doc);
+        jEditorPane1.setCaretPosition(0);
+        doc.addDocumentListener(this);
+        doc.addUndoableEditListener(this);
+    }
+
+    /**
+     * Start a new recovery journal for the document, which has no unsaved
+     * changes.  A read only view has none.
+     * @param textHash {@link jsyntaxpane.util.TextHash} of the text of the
+     * file, unused for a new file
+     */
+    private void startRecovery(long textHash) {
+        closeRecovery();
+        if (readOnly || !journalPolicy.isRecoveryJournalEnabled()) {
+            return;
+        }
         try {
-            this.document = new SyntaxDocument(new MiniJavaLexer());
-            jEditorPane1.setDocument(this.document);
-            EditorKit kit = jEditorPane1.getEditorKit();
-            kit.read(new InputStreamReader(new FileInputStream(f), "UTF-8"), this.document, 0);
-            jEditorPane1.setCaretPosition(0);
+            recovery = RecoveryJournal.start(RECOVERY_DIR, document,
+                    newFile ? null : storage, Title, textHash);
+            document.setRecoveryJournal(recovery);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
 
-            setModified(false);
-            this.document.clearUndos();
+    /**
+     * Take over the recovery journal the text of the document was recovered
+     * from, or delete it if recovery journals are turned off.  The text is
+     * not the text of the file, so it is modified.
+     */
+    private void resumeRecovery() {
+        closeRecovery();
+        if (!journalPolicy.isRecoveryJournalEnabled()) {
+            RecoveryJournal.delete(recoveryLog);
+        } else {
+            try {
+                recovery = RecoveryJournal.resume(recoveryLog, document);
+                document.setRecoveryJournal(recovery);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+        setModified(true);
+    }
 
-            return true;
-        } catch (FileNotFoundException fnfe) {
-            return false;
-        } catch (IOException ioe) {
-            return false;
-        } catch (Exception e) {
-            e.printStackTrace(System.err);
-            return false;
+    private void closeRecovery() {
+        if (recovery != null) {
+            document.setRecoveryJournal(null);
+            recovery.close();
+            recovery = null;
+        }
+    }
+
+    /**
+     * Start loading the text of a recovery journal in the background, like
+     * loadFile() loads a file.  The text is shown as modified.
+     */
+    private void recoverFile(File log) {
+        startLoading(new RecoveryLoader(log, new SyntaxDocument(new MiniJavaLexer(),
+                new PieceTableContent())) {
+
+            @Override
+            protected void done() {
+                loadingDone(this, null);
+            }
+        });
+    }
+
+    /**
+     * Start loading the file in the background.  The editor shows an empty,
+     * read only document until the file is read, then the document of the
+     * file replaces it.  That document keeps its text in a piece table, so
+     * edits stay fast however large the file is.  The container is notified
+     * of the progress, and of the end of loading.  Escape cancels the
+     * loading.  The undo journal of the file is opened with it, so the
+     * edits of the last sessions can be undone.
+     */
+    private void loadFile(File f) {
+        final SyntaxDocument doc = new SyntaxDocument(new MiniJavaLexer(),
+                new PieceTableContent());
+        startLoading(new DocumentLoader(f, doc, UTF8) {
+
+            private UndoJournal opened;
+
+            @Override
+            protected Document doInBackground() throws IOException, BadLocationException {
+                Document loaded = super.doInBackground();
+                if (!isCancelled() && journalPolicy.isUndoJournalEnabled()) {
+                    pruneJournals(journalPolicy);
+                    try {
+                        opened = UndoJournal.open(UndoJournal.getJournalFile(JOURNAL_DIR, getFile()),
+                                getTextHash(), journalPolicy.getUndoJournalMaxSize());
+                    } catch (IOException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+                return loaded;
+            }
 
+            @Override
+            protected void done() {
+                loadingDone(this, opened);
+            }
+        });
+    }
+
+    /**
+     * Start mapping the file in the background, like loadFile() loads it.
+     * The document of the file is read only, and always in large file mode.
+     */
+    private void mapFile(File f) {
+        startLoading(new MappedFileLoader(f, new MiniJavaLexer()) {
+
+            @Override
+            protected void done() {
+                loadingDone(this, null);
+            }
+        });
+    }
+
+    private void startLoading(SwingWorker<? extends Document, Void> worker) {
+        loader = worker;
+        loader.addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName()) && container != null) {
+                    container.notifyLoadingProgress((Integer) evt.getNewValue());
+                }
+            }
+        });
+        jEditorPane1.setEditable(false);
+        getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(
+                KeyStroke.getKeyStroke("ESCAPE"), CANCEL_LOADING);
+        getActionMap().put(CANCEL_LOADING, new AbstractAction() {
+
+            public void actionPerformed(ActionEvent e) {
+                cancelLoading();
+            }
+        });
+        if (container != null) {
+            container.notifyLoadingProgress(0);
         }
+        loader.execute();
     }
 
-    
-    public boolean saveFile(File f) {
+    /**
+     * Show the document the loader read, when it is done, with the undo
+     * journal opened for it
+     */
+    private void loadingDone(SwingWorker<? extends Document, Void> worker, UndoJournal opened) {
+        loader = null;
+        jEditorPane1.setEditable(!readOnly);
+        getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).remove(
+                KeyStroke.getKeyStroke("ESCAPE"));
+        boolean loaded = false;
+        if (!worker.isCancelled()) {
+            try {
+                SyntaxDocument doc = (SyntaxDocument) worker.get();
+                setDocument(doc);
+                setModified(false);
+                doc.clearUndos();
+                closeJournal();
+                journal = opened;
+                doc.setUndoJournal(journal);
+                if (readOnly) {
+                    setLargeFileMode(true);
+                }
+                if (worker instanceof RecoveryLoader) {
+                    resumeRecovery();
+                } else if (worker instanceof DocumentLoader) {
+                    startRecovery(((DocumentLoader) worker).getTextHash());
+                } else {
+                    closeRecovery();
+                }
+                loaded = true;
+            } catch (InterruptedException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            } catch (ExecutionException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+        if (!loaded && opened != null) {
+            opened.close();
+        }
+        if (container != null) {
+            container.notifyLoadingFinished(loaded);
+        }
+    }
+
+    /**
+     * @return true if the view was made to show a file without editing it
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return true while the file is being loaded
+     */
+    public boolean isLoading() {
+        return loader != null;
+    }
+
+    /**
+     * Stop loading the file.  The container is notified that loading
+     * finished without the file.
+     */
+    public void cancelLoading() {
+        if (loader != null) {
+            loader.cancel(false);
+        }
+    }
+
+    /**
+     * Stop the work the view does in the background, when it is not used
+     * any more.  The container is not notified of anything after this.
+     */
+    public void close() {
+        container = null;
+        jEditorPane1.removePropertyChangeListener(DefaultSyntaxKit.LARGE_FILE_MODE, this);
+        cancelLoading();
+        closeJournal();
+        closeRecovery();
+    }
 
+    private void closeJournal() {
+        if (journal != null) {
+            document.setUndoJournal(null);
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Mark the save in the undo journal of the file, if the text is still
+     * the text saved.  A file saved for the first time, or under another
+     * name, gets a new journal.
+     */
+    private void journalSaved(File f, long textHash) {
+        if (modified || !journalPolicy.isUndoJournalEnabled()) {
+            return;
+        }
+        File journalFile = UndoJournal.getJournalFile(JOURNAL_DIR, f);
+        if (journal != null && journal.getFile().equals(journalFile)) {
+            journal.saved(textHash);
+            return;
+        }
+        closeJournal();
         try {
-            OutputStreamWriter w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
-            BufferedWriter bw = new BufferedWriter(w);
-            bw.write(jEditorPane1.getText());
+            journal = UndoJournal.create(journalFile, textHash);
+            document.setUndoJournal(journal);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Delete the undo journals the policy does not keep, the first time it
+     * is called.  Does disk IO, so should not be called on the EDT.
+     */
+    private static synchronized void pruneJournals(JournalPolicy policy) {
+        if (!journalsPruned) {
+            journalsPruned = true;
+            UndoJournal.prune(JOURNAL_DIR, policy.getUndoJournalMaxAge(),
+                    policy.getUndoJournalMaxTotalSize());
+        }
+    }
+
+    /**
+     * Add the text of the file saved to the history of its directory, in
+     * the background
+     */
+    private static void addToHistory(final File f) {
+        HISTORY_THREAD.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    if (HISTORY_DIR.isDirectory() || HISTORY_DIR.mkdirs()) {
+                        LocalHistory.open(LocalHistory.getHistoryFile(HISTORY_DIR, f)).add(f);
+                    }
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the history of the saved versions of the file, which can be read
+     * back from it.  Does disk IO, so should not be called on the EDT.
+     * @return the history, or null if the file was never saved
+     */
+    public LocalHistory openHistory() throws IOException {
+        File f = this.storage;
+        if (f == null || newFile) {
+            return null;
+        }
+        return LocalHistory.open(LocalHistory.getHistoryFile(HISTORY_DIR, f));
+    }
+
+    /**
+     * Start saving the document to the given file in the background.  The
+     * view takes the name of the file, and is not modified, until the save
+     * fails: then the name it had comes back.  The container is notified of
+     * the end of the save.
+     * @return true if the save was started
+     */
+    public boolean saveFile(final File f) {
+        if (isLoading() || readOnly) {
+            return false;
+        }
+        final File oldStorage = this.storage;
+        final boolean oldNewFile = this.newFile;
+        final String oldTitle = this.Title;
 
-            bw.flush();
-            bw.close();
-            w.close();
+        this.storage = f;
+        this.newFile = false;
+        this.Title = storage.getName();
+        setModified(false);
 
+        saver = new DocumentSaver(document, f, UTF8, true) {
 
-            this.storage = f;
-            this.newFile = false;
-            this.Title = storage.getName();
-            setModified(false);
+            @Override
+            protected void done() {
+                boolean latest = (saver == this);
+                if (latest) {
+                    saver = null;
+                }
+                boolean saved = false;
+                try {
+                    get();
+                    saved = true;
+                    addToHistory(f);
+                    if (latest && storage == f) {
+                        journalSaved(f, getTextHash());
+                        if (recovery != null && !modified) {
+                            recovery.saved(f, Title, getTextHash());
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                } catch (ExecutionException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                }
+                if (!saved) {
+                    if (storage == f) {
+                        storage = oldStorage;
+                        newFile = oldNewFile;
+                        Title = oldTitle;
+                    }
+                    setModified(true);
+                }
+                if (container != null) {
+                    container.notifySaveFinished(f, saved);
+                }
+                if (latest && saveWaitDialog != null) {
+                    saveWaitDialog.dispose();
+                }
+            }
+        };
+        saver.queue();
+        return true;
+    }
 
+    /**
+     * Wait for the last save started to finish, before the application
+     * exits.  A modal dialog is shown until the save is done, so the events
+     * are still dispatched meanwhile.  Closing the dialog stops waiting.
+     * @return true if there was no save, or it succeeded
+     */
+    public boolean waitForSave() {
+        DocumentSaver s = saver;
+        if (s == null) {
             return true;
-        } catch (IOException ioe) {
+        }
+        org.jdesktop.application.ResourceMap resourceMap = org.jdesktop.application.Application.getInstance(minijed.MiniJedApp.class).getContext().getResourceMap(EditorView.class);
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        JOptionPane pane = new JOptionPane(new Object[]{
+                    resourceMap.getString("savingMessage.text", Title), progressBar},
+                JOptionPane.INFORMATION_MESSAGE, JOptionPane.DEFAULT_OPTION, null, new Object[0]);
+        // the saver closes it once it is done
+        saveWaitDialog = pane.createDialog(this, resourceMap.getString("savingTitle.text"));
+        saveWaitDialog.setVisible(true);
+        saveWaitDialog = null;
+        if (saver == s) {
+            // the dialog was closed before the save ended
             return false;
         }
+        try {
+            s.get();
+            return true;
+        } catch (InterruptedException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } catch (ExecutionException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        return false;
+    }
 
+    /**
+     * Large file mode turns off the editor features that are too slow for
+     * large documents, see {@link DefaultSyntaxKit#setLargeFileMode(Boolean)}.
+     * It is chosen by the size of the document unless set with
+     * setLargeFileMode().
+     */
+    public boolean isLargeFileMode() {
+        EditorKit kit = jEditorPane1.getEditorKit();
+        return (kit instanceof DefaultSyntaxKit) && ((DefaultSyntaxKit) kit).isLargeFileMode();
+    }
+
+    public void setLargeFileMode(boolean largeFileMode) {
+        EditorKit kit = jEditorPane1.getEditorKit();
+        if (kit instanceof DefaultSyntaxKit) {
+            ((DefaultSyntaxKit) kit).setLargeFileMode(largeFileMode);
+        }
     }
 
     public void undo() {
@@ -533,6 +1041,15 @@ public class EditorView extends javax.swing.JPanel implements DocumentListener,
     }
      /* ----------------------------------------------------- */
     // </editor-fold>
+
+    // <editor-fold defaultstate="expanded" desc="PropertyChangeListener implementation">
+    public void propertyChange(PropertyChangeEvent evt) {
+        if (container != null) {
+            container.notifyLargeFileModeChanged(isLargeFileMode());
+        }
+    }
+     /* ----------------------------------------------------- */
+    // </editor-fold>
     
     
 
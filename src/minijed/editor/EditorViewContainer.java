@@ -13,6 +13,7 @@
  */
 package minijed.editor;
 
+import java.io.File;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.UndoableEditEvent;
 
@@ -21,5 +22,9 @@ public interface EditorViewContainer{
     public void notifyDocumentModified(String title, boolean modified);
     public void notifyCaretChanged(CaretEvent e);
     public void notifyFirstUndoableEditHappened(UndoableEditEvent evt);        
+    public void notifyLargeFileModeChanged(boolean largeFileMode);
+    public void notifyLoadingProgress(int percent);
+    public void notifyLoadingFinished(boolean loaded);
+    public void notifySaveFinished(File f, boolean saved);
     
 }
\ No newline at end of file